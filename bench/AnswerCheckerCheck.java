@@ -0,0 +1,89 @@
+import java.util.Random;
+
+/**
+ * Regression check for AnswerChecker. Runs a table of known answers, then compares the
+ * checker with the exact evaluation of ExpressionParser on random expressions over
+ * random hands, with random operators, brackets, unary minus and spaces, for the target
+ * the expression makes and for a target it does not make. Exits with status 1 on the
+ * first mismatch.
+ *
+ * Run with: java -cp out AnswerCheckerCheck [randomExpressions] [seed]
+ */
+public class AnswerCheckerCheck {
+    private static final int[] SOLVABLE = {3, 3, 8, 8};
+
+    public static void main(String[] args) throws Exception {
+        int expressions = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 24L;
+        AnswerChecker checker = new AnswerChecker();
+
+        Object[][] cases = {
+                {"8/(3-8/3)", SOLVABLE, AnswerChecker.CORRECT},
+                {" 8 / ( 3 - 8 / 3 ) ", SOLVABLE, AnswerChecker.CORRECT},
+                {"-8/(8/3-3)", SOLVABLE, AnswerChecker.CORRECT},
+                {"5*(5-1/5)", new int[]{1, 5, 5, 5}, AnswerChecker.CORRECT},
+                {"(10*10-4)/4", new int[]{4, 4, 10, 10}, AnswerChecker.CORRECT},
+                {"13+11", new int[]{11, 13}, AnswerChecker.CORRECT},
+                {"8+8+3+3", SOLVABLE, AnswerChecker.WRONG_RESULT},
+                {"1+1+1+1", new int[]{1, 1, 1, 1}, AnswerChecker.WRONG_RESULT},
+                {"(1-1)/(1-1)", new int[]{1, 1, 1, 1}, AnswerChecker.WRONG_RESULT},
+                {"8*3", SOLVABLE, AnswerChecker.WRONG_CARDS},
+                {"24", SOLVABLE, AnswerChecker.WRONG_CARDS},
+                {"8/(3-8/3)+0", SOLVABLE, AnswerChecker.WRONG_CARDS},
+                {"8/(3-8/3.0)", SOLVABLE, AnswerChecker.WRONG_CARDS},
+                {"3*8+8*(3-3)", SOLVABLE, AnswerChecker.WRONG_CARDS},
+                {"8/(3-8/3)*1000", SOLVABLE, AnswerChecker.WRONG_CARDS},
+                {"", SOLVABLE, AnswerChecker.INVALID},
+                {"8/(3-8/3", SOLVABLE, AnswerChecker.INVALID},
+                {"8/(3-8/3))", SOLVABLE, AnswerChecker.INVALID},
+                {"8/(3-x/3)", SOLVABLE, AnswerChecker.INVALID},
+                {"8/(3-8/3)-", SOLVABLE, AnswerChecker.INVALID},
+                {"8 8/(3-3)", SOLVABLE, AnswerChecker.INVALID},
+        };
+        for (Object[] c : cases) {
+            int result = checker.check((String) c[0], (int[]) c[1], 24);
+            check(result == (Integer) c[2], "\"" + c[0] + "\" gave " + result + ", expected " + c[2]);
+        }
+
+        Random random = new Random(seed);
+        ExpressionParser parser = new ExpressionParser();
+        int correct = 0;
+        for (int i = 0; i < expressions; i++) {
+            int[] values = new int[4];
+            for (int j = 0; j < values.length; j++) {
+                values[j] = 1 + random.nextInt(SolvabilityTable.VALUES);
+            }
+            String expr = expression(random, values, 0, values.length);
+            double value = parser.evaluate(parser.parseExpression(expr));
+            long target = Double.isInfinite(value) || Double.isNaN(value) ? 24 : Math.round(value);
+            for (long t = target; t <= target + 1; t++) {
+                int expected = parser.evaluatesTo(parser.parseExpression(expr), t) ? AnswerChecker.CORRECT : AnswerChecker.WRONG_RESULT;
+                int result = checker.check(expr, values, t);
+                check(result == expected, "\"" + expr + "\" with target " + t + " gave " + result + ", expected " + expected);
+                correct += result == AnswerChecker.CORRECT ? 1 : 0;
+            }
+        }
+        System.out.printf("AnswerCheckerCheck OK: %d cases, %d random expressions, %d correct%n", cases.length, expressions, correct);
+    }
+
+    // Combines the values from..to-1, in order, into a random expression
+    private static String expression(Random random, int[] values, int from, int to) {
+        String expr;
+        if (to - from == 1) {
+            expr = Integer.toString(values[from]);
+        } else {
+            int split = from + 1 + random.nextInt(to - from - 1);
+            char op = "+-*/".charAt(random.nextInt(4));
+            String space = random.nextInt(4) == 0 ? " " : "";
+            expr = "(" + expression(random, values, from, split) + space + op + space + expression(random, values, split, to) + ")";
+        }
+        return random.nextInt(8) == 0 ? "-" + expr : expr;
+    }
+
+    private static void check(boolean ok, String message) {
+        if (!ok) {
+            System.err.println("AnswerCheckerCheck FAILED: " + message);
+            System.exit(1);
+        }
+    }
+}
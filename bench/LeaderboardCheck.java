@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Regression check for Leaderboard. Runs random registrations and game results against
+ * the treap and against a brute force ranking that sorts every user, and compares the
+ * rank of every user every few steps. The rank changes drained from the leaderboard are
+ * applied to a copy of the persisted ranks, with some drains failing and being restored,
+ * and that copy has to match the brute force ranking after every successful drain.
+ * Exits with status 1 on the first mismatch.
+ *
+ * Run with: java -cp out LeaderboardCheck [operations] [seed]
+ */
+public class LeaderboardCheck {
+
+    public static void main(String[] args) {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 24L;
+        Random random = new Random(seed);
+        Leaderboard leaderboard = new Leaderboard();
+        Map<String, Stats> users = new HashMap<>();
+        Map<String, Integer> persisted = new HashMap<>();
+        List<String> names = new ArrayList<>();
+
+        for (int op = 0; op < operations; op++) {
+            if (names.isEmpty() || random.nextInt(10) == 0) {
+                String name = "user" + names.size();
+                Stats stats = new Stats(name, random.nextInt(5), 0, 0.0F);
+                names.add(name);
+                users.put(name, stats);
+                leaderboard.put(name, stats.games, stats.wins, stats.avg);
+            } else {
+                Stats old = users.get(names.get(random.nextInt(names.size())));
+                int games = 1 + random.nextInt(3);
+                int wins = random.nextInt(games + 1);
+                float winTime = wins * (1 + random.nextInt(60));
+                users.put(old.name, old.record(games, wins, winTime));
+                check(leaderboard.record(old.name, games, wins, winTime), op, "record of a known user failed");
+            }
+            check(leaderboard.size() == names.size(), op, "size is " + leaderboard.size());
+            boolean drain = random.nextInt(4) == 0;
+            // Sorting every user is the slow part, so the full comparison is not run every time
+            if (!drain && op % 16 != 0) {
+                continue;
+            }
+            Map<String, Integer> expected = rank(users);
+            for (String name : names) {
+                check(leaderboard.rankOf(name) == expected.get(name), op,
+                        "rank of " + name + " is " + leaderboard.rankOf(name) + ", expected " + expected.get(name));
+            }
+            if (drain) {
+                Map<String, Integer> changed = leaderboard.drainRankChanges();
+                if (random.nextInt(5) == 0) {
+                    // As if writing the ranks failed
+                    leaderboard.restoreRankChanges(changed.keySet());
+                } else {
+                    persisted.putAll(changed);
+                    check(persisted.equals(expected), op, "persisted ranks differ after a drain");
+                }
+            }
+        }
+        check(leaderboard.rankOf("nobody") == 0, operations, "unknown user has a rank");
+        System.out.printf("LeaderboardCheck OK: %d operations, %d users%n", operations, names.size());
+    }
+
+    private static Map<String, Integer> rank(Map<String, Stats> users) {
+        List<Stats> sorted = new ArrayList<>(users.values());
+        sorted.sort((a, b) -> {
+            if (a.wins != b.wins) {
+                return Integer.compare(b.wins, a.wins);
+            }
+            if (a.games != b.games) {
+                return Integer.compare(a.games, b.games);
+            }
+            if (a.avg != b.avg) {
+                return Float.compare(a.avg, b.avg);
+            }
+            return a.name.compareTo(b.name);
+        });
+        Map<String, Integer> ranks = new HashMap<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            ranks.put(sorted.get(i).name, i + 1);
+        }
+        return ranks;
+    }
+
+    private static void check(boolean ok, int op, String message) {
+        if (!ok) {
+            System.err.printf("LeaderboardCheck FAILED at operation %d: %s%n", op, message);
+            System.exit(1);
+        }
+    }
+
+    private static final class Stats {
+        private final String name;
+        private final int games;
+        private final int wins;
+        private final float avg;
+
+        Stats(String name, int games, int wins, float avg) {
+            this.name = name;
+            this.games = games;
+            this.wins = wins;
+            this.avg = avg;
+        }
+
+        // The arithmetic of the UPDATE in DatabaseService
+        Stats record(int games, int wins, float winTime) {
+            float avg = this.avg;
+            if (this.wins + wins != 0) {
+                avg = Math.round((this.avg * this.wins + winTime) / (this.wins + wins) * 100) / 100.0F;
+            }
+            return new Stats(this.name, this.games + games, this.wins + wins, avg);
+        }
+    }
+}
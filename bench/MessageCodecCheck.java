@@ -0,0 +1,151 @@
+import javax.jms.BytesMessage;
+import javax.jms.Message;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Regression check for MessageCodec, without a JMS provider: the session and messages are
+ * proxies that only hold the body. Checks that legacy text messages decode into the same
+ * fields as the split("_") used before, that text output is exactly the legacy format,
+ * including the STARTGAME layout, that hand-built binary frames decode, that malformed
+ * frames decode as UNKNOWN, and that messages round trip in the configured wire format.
+ * Exits with status 1 on the first mismatch.
+ *
+ * Run with: java -cp out:lib/javax.jms.jar MessageCodecCheck
+ * and again with -Djms.wireFormat=binary to check the binary round trips.
+ */
+public class MessageCodecCheck {
+    private static final MessageCodec.Frame FRAME = new MessageCodec.Frame();
+
+    public static void main(String[] args) throws Exception {
+        Session session = session();
+
+        String[] legacy = {
+                "REQUESTGAME_alice_3_12.5",
+                "LEAVEGAME_alice",
+                "SUBMITANSWER_bob_8/(3-8/3)_4.2",
+                "GAMEJOINED_alice",
+                "WRONGANSWER_bob_The answer does not evaluate to 24!",
+                "ENDGAME_alice_8/(3-8/3)_4.2",
+                "STARTGAME_1_12_3_4_4_alice 3 12.5|bob 0 0.0",
+                "REQUESTGAME__3_12.5",
+                "LEAVEGAME_carol__",
+        };
+        for (String text : legacy) {
+            MessageCodec.Frame frame = MessageCodec.decode(textMessage(text), FRAME);
+            String[] split = text.split("_");
+            check(MessageCodec.nameOf(frame.opcode()).equals(split[0]), text + " decoded as " + MessageCodec.nameOf(frame.opcode()));
+            check(Arrays.equals(fields(frame), Arrays.copyOfRange(split, 1, split.length)),
+                    text + " decoded into " + Arrays.toString(fields(frame)));
+        }
+        check(MessageCodec.decode(textMessage("NOTAGAME_x"), FRAME).opcode() == MessageCodec.UNKNOWN, "unknown text opcode decoded");
+        check(MessageCodec.decode(textMessage(""), FRAME).opcode() == MessageCodec.UNKNOWN, "empty text decoded");
+        check(MessageCodec.decode(textMessage("REQUESTGAME_alice_-12"), FRAME).intField(1) == -12, "intField of -12");
+
+        byte[] name = "\u540d\u524d_x".getBytes(StandardCharsets.UTF_8);
+        byte[] binary = concat(new byte[]{MessageCodec.VERSION, MessageCodec.SUBMITANSWER, 3, 0, (byte) name.length}, name,
+                new byte[]{0, 9}, "8/(3-8/3)".getBytes(StandardCharsets.US_ASCII), new byte[]{0, 3}, "1.5".getBytes(StandardCharsets.US_ASCII));
+        MessageCodec.Frame frame = MessageCodec.decode(bytesMessage(binary), FRAME);
+        check(frame.opcode() == MessageCodec.SUBMITANSWER, "binary opcode " + frame.opcode());
+        check(Arrays.equals(fields(frame), new String[]{"\u540d\u524d_x", "8/(3-8/3)", "1.5"}), "binary fields " + Arrays.toString(fields(frame)));
+        check(frame.floatField(2) == 1.5F, "floatField of 1.5");
+        check(MessageCodec.decode(bytesMessage(Arrays.copyOf(binary, binary.length - 1)), FRAME).opcode() == MessageCodec.UNKNOWN,
+                "truncated binary frame decoded");
+        byte[] future = binary.clone();
+        future[0] = MessageCodec.VERSION + 1;
+        check(MessageCodec.decode(bytesMessage(future), FRAME).opcode() == MessageCodec.UNKNOWN, "unknown binary version decoded");
+
+        String[] start = {"1", "12", "3", "4", "alice", "3", "12.5", "bob", "0", "0.0"};
+        Message encoded = MessageCodec.encode(session, MessageCodec.STARTGAME, start);
+        if (MessageCodec.BINARY) {
+            check(Arrays.equals(fields(MessageCodec.decode(encoded, FRAME)), start), "STARTGAME did not round trip");
+            String[] odd = {"user_with_underscores", "\u540d\u524d", "", "8/(3-8/3)"};
+            check(Arrays.equals(fields(MessageCodec.decode(MessageCodec.encode(session, MessageCodec.SUBMITANSWER, odd), FRAME)), odd),
+                    "fields with '_', non-ASCII and empty strings did not round trip");
+        } else {
+            check(((TextMessage) encoded).getText().equals("STARTGAME_1_12_3_4_4_alice 3 12.5|bob 0 0.0"),
+                    "STARTGAME text is " + ((TextMessage) encoded).getText());
+            check(((TextMessage) MessageCodec.encode(session, MessageCodec.WRONGANSWER, "bob", "The expression is not valid!")).getText()
+                    .equals("WRONGANSWER_bob_The expression is not valid!"), "WRONGANSWER text differs");
+        }
+        for (int opcode = MessageCodec.REQUESTGAME; opcode <= MessageCodec.ENDGAME; opcode++) {
+            if (opcode == MessageCodec.STARTGAME) {
+                continue;
+            }
+            String[] sent = {"alice", "8/(3-8/3)", "4.2"};
+            frame = MessageCodec.decode(MessageCodec.encode(session, opcode, sent), FRAME);
+            check(frame.opcode() == opcode && Arrays.equals(fields(frame), sent), MessageCodec.nameOf(opcode) + " did not round trip");
+        }
+        System.out.printf("MessageCodecCheck OK: %d legacy messages, %s round trips%n", legacy.length, MessageCodec.BINARY ? "binary" : "text");
+    }
+
+    private static String[] fields(MessageCodec.Frame frame) {
+        String[] fields = new String[frame.fieldCount()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = frame.field(i);
+        }
+        return fields;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static Session session() {
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[]{Session.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "createTextMessage":
+                    return textMessage((String) args[0]);
+                case "createBytesMessage":
+                    return bytesMessage(new byte[0]);
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static TextMessage textMessage(String text) {
+        return (TextMessage) Proxy.newProxyInstance(TextMessage.class.getClassLoader(), new Class<?>[]{TextMessage.class}, (proxy, method, args) -> {
+            if (method.getName().equals("getText")) {
+                return text;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    // Written with writeBytes, then read back with getBodyLength and readBytes
+    private static BytesMessage bytesMessage(byte[] initial) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(initial, 0, initial.length);
+        return (BytesMessage) Proxy.newProxyInstance(BytesMessage.class.getClassLoader(), new Class<?>[]{BytesMessage.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "writeBytes":
+                    body.write((byte[]) args[0], (Integer) args[1], (Integer) args[2]);
+                    return null;
+                case "getBodyLength":
+                    return (long) body.size();
+                case "readBytes":
+                    byte[] bytes = body.toByteArray();
+                    System.arraycopy(bytes, 0, args[0], 0, bytes.length);
+                    return bytes.length;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static void check(boolean ok, String message) {
+        if (!ok) {
+            System.err.println("MessageCodecCheck FAILED: " + message);
+            System.exit(1);
+        }
+    }
+}
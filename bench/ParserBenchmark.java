@@ -0,0 +1,115 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Throughput and allocation benchmark for answer checking. Compares the tree based
+ * ExpressionParser (parse, double evaluation and exact evaluation) with the single pass
+ * AnswerChecker used by Game.checkAns, over realistic and adversarial inputs. Each case
+ * is warmed up, then measured for a fixed time, and reports operations per second and
+ * bytes allocated per operation, read from the allocation counter of the thread.
+ *
+ * Run with: java -cp out ParserBenchmark [measureMillis]
+ */
+public class ParserBenchmark {
+    private static final int[] VALUES = {3, 3, 8, 8};
+    private static final long TARGET = 24;
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Keeps results alive so the JIT cannot drop the work
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        long measureMillis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        String[][] cases = {
+                {"realistic", "8/(3-8/3)"},
+                {"realistic-spaced", "8 / ( 3 - 8 / 3 )"},
+                {"wrong-result", "8+8+3+3"},
+                {"deep-nesting", nest(100, "8/(3-8/3)")},
+                {"long-digits", repeat('9', ExpressionParser.MaxNumOfDigit) + "*0+24"},
+                {"whitespace-padding", pad(200, "8/(3-8/3)")},
+                {"invalid-trailing", "8/(3-8/3))"},
+                {"invalid-chars", "8/(3-x/3)"},
+        };
+        System.out.printf("%-20s %-16s %14s %12s%n", "case", "method", "ops/s", "B/op");
+        for (String[] c : cases) {
+            String expr = c[1];
+            ExpressionParser parser = new ExpressionParser();
+            AnswerChecker checker = new AnswerChecker();
+            run(c[0], "parse", measureMillis, () -> {
+                try {
+                    sink += parser.parseExpression(expr) != null ? 1 : 0;
+                } catch (Exception e) {
+                    sink++;
+                }
+            });
+            run(c[0], "parse+evaluate", measureMillis, () -> {
+                try {
+                    sink += (long) parser.evaluate(parser.parseExpression(expr));
+                } catch (Exception e) {
+                    sink++;
+                }
+            });
+            run(c[0], "parse+exact", measureMillis, () -> {
+                try {
+                    sink += parser.evaluatesTo(parser.parseExpression(expr), TARGET) ? 1 : 0;
+                } catch (Exception e) {
+                    sink++;
+                }
+            });
+            run(c[0], "checker", measureMillis, () -> sink += checker.check(expr, VALUES, TARGET));
+        }
+    }
+
+    private static void run(String name, String method, long measureMillis, Runnable op) {
+        // Warm up for half the measurement time so the JIT has compiled the code
+        loop(op, measureMillis / 2);
+        long thread = Thread.currentThread().getId();
+        long bytesBefore = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long ops = loop(op, measureMillis);
+        long elapsed = System.nanoTime() - start;
+        long bytes = THREADS.getThreadAllocatedBytes(thread) - bytesBefore;
+        System.out.printf("%-20s %-16s %14.0f %12.1f%n", name, method, ops * 1e9 / elapsed, (double) bytes / ops);
+    }
+
+    private static long loop(Runnable op, long millis) {
+        long deadline = System.nanoTime() + millis * 1000000L;
+        long ops = 0;
+        do {
+            // Check the clock once per batch so it does not dominate short operations
+            for (int i = 0; i < 1000; i++) {
+                op.run();
+            }
+            ops += 1000;
+        } while (System.nanoTime() < deadline);
+        return ops;
+    }
+
+    private static String nest(int depth, String inner) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            sb.append('(');
+        }
+        sb.append(inner);
+        for (int i = 0; i < depth; i++) {
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    private static String repeat(char ch, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(ch);
+        }
+        return sb.toString();
+    }
+
+    private static String pad(int spaces, String expr) {
+        String padding = repeat(' ', spaces);
+        StringBuilder sb = new StringBuilder(padding);
+        for (char ch : expr.toCharArray()) {
+            sb.append(ch).append(padding);
+        }
+        return sb.toString();
+    }
+}
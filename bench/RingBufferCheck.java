@@ -0,0 +1,155 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Regression check for RingBuffer and InProcessTransport. Checks the capacity rounding
+ * and the full and empty buffer single threaded, then runs producers and consumers at
+ * once and checks that every element is received exactly once and that each consumer
+ * sees the elements of a producer in the order they were added. Finally checks that the
+ * in-process transport replies to the inbox of a request with its correlation id, and
+ * only delivers the events of a room to its players and to subscribers without a
+ * selector, and that a request without fields or a failing listener does not stop its
+ * receiver. Exits with status 1 on the first mismatch.
+ *
+ * Run with: java -cp out RingBufferCheck [producers] [consumers] [elementsPerProducer]
+ */
+public class RingBufferCheck {
+
+    public static void main(String[] args) throws Exception {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int consumers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int perProducer = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+
+        check(new RingBuffer<Integer>(1).capacity() == 2, "capacity 1 not rounded to 2");
+        check(new RingBuffer<Integer>(1000).capacity() == 1024, "capacity 1000 not rounded to 1024");
+        RingBuffer<Integer> small = new RingBuffer<>(4);
+        check(small.poll() == null, "poll of an empty buffer");
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++) {
+                check(small.offer(i), "offer " + i + " of lap " + lap + " refused");
+            }
+            check(!small.offer(4), "offer to a full buffer accepted");
+            check(small.size() == 4, "size of a full buffer is " + small.size());
+            for (int i = 0; i < 4; i++) {
+                Integer polled = small.poll();
+                check(polled != null && polled == i, "polled " + polled + ", expected " + i);
+            }
+            check(small.poll() == null && small.size() == 0, "buffer not empty after a lap");
+        }
+
+        RingBuffer<long[]> buffer = new RingBuffer<>(1024);
+        AtomicLongArray seen = new AtomicLongArray(producers * perProducer);
+        AtomicInteger received = new AtomicInteger();
+        AtomicInteger outOfOrder = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(producers + consumers);
+        long total = (long) producers * perProducer;
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    long[] element = {producer, i};
+                    while (!buffer.offer(element)) {
+                        Thread.yield();
+                    }
+                }
+                done.countDown();
+            }, "producer-" + p).start();
+        }
+        for (int c = 0; c < consumers; c++) {
+            new Thread(() -> {
+                long[] last = new long[producers];
+                Arrays.fill(last, -1);
+                while (received.get() < total) {
+                    long[] element = buffer.poll();
+                    if (element == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    int producer = (int) element[0];
+                    if (element[1] <= last[producer]) {
+                        outOfOrder.incrementAndGet();
+                    }
+                    last[producer] = element[1];
+                    seen.incrementAndGet(producer * perProducer + (int) element[1]);
+                    received.incrementAndGet();
+                }
+                done.countDown();
+            }, "consumer-" + c).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        check(outOfOrder.get() == 0, outOfOrder.get() + " elements received out of order");
+        for (int i = 0; i < seen.length(); i++) {
+            check(seen.get(i) == 1, "element " + i + " received " + seen.get(i) + " times");
+        }
+        check(buffer.poll() == null, "buffer not empty at the end");
+
+        InProcessTransport transport = new InProcessTransport(16);
+        transport.start(new MessageTransport.RequestListener() {
+            @Override
+            public void onRequest(int opcode, String[] fields, MessageTransport.ReplyAddress replyTo) {
+                if (fields[0].equals("mallory")) {
+                    throw new IllegalStateException("listener failure");
+                }
+                transport.reply(replyTo, MessageCodec.GAMEJOINED, fields[0]);
+                transport.publish(7, Collections.singletonList(fields[0]), MessageCodec.ENDGAME, fields[0], "", "0.0");
+            }
+
+            @Override
+            public void awaitProcessed() {
+            }
+        });
+        RingBuffer<InProcessTransport.Envelope> inbox = transport.createInbox();
+        InProcessTransport.Subscription mine = transport.subscribe("alice");
+        InProcessTransport.Subscription other = transport.subscribe("bob");
+        InProcessTransport.Subscription all = transport.subscribe(null);
+        String correlationId = transport.request(inbox, MessageCodec.REQUESTGAME, "alice", "0", "0.0");
+        InProcessTransport.Envelope reply = await(inbox);
+        check(reply.opcode == MessageCodec.GAMEJOINED && correlationId.equals(reply.correlationId), "wrong reply to the request");
+        InProcessTransport.Envelope event = awaitEvent(mine);
+        check(event.roomId == 7 && event.opcode == MessageCodec.ENDGAME, "wrong event for the player");
+        check(awaitEvent(all).roomId == 7, "subscriber without a selector missed the event");
+        check(other.poll() == null, "event delivered to a player of another room");
+        transport.request(null, MessageCodec.REQUESTGAME, "bob", "0", "0.0");
+        check(await(transport.sharedReplies()).correlationId != null, "reply without inbox not on the shared queue");
+        transport.request(inbox, MessageCodec.LEAVEGAME);
+        transport.request(inbox, MessageCodec.REQUESTGAME, "mallory", "0", "0.0");
+        correlationId = transport.request(inbox, MessageCodec.REQUESTGAME, "alice", "0", "0.0");
+        check(correlationId.equals(await(inbox).correlationId), "receiver stopped after a bad request");
+        transport.close();
+
+        System.out.printf("RingBufferCheck OK: %d producers, %d consumers, %d elements, %.0f elements/s%n",
+                producers, consumers, total, total * 1e9 / elapsed);
+    }
+
+    private static InProcessTransport.Envelope await(RingBuffer<InProcessTransport.Envelope> queue) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        InProcessTransport.Envelope envelope;
+        while ((envelope = queue.poll()) == null) {
+            check(System.currentTimeMillis() < deadline, "no message within 5 s");
+            Thread.sleep(1);
+        }
+        return envelope;
+    }
+
+    private static InProcessTransport.Envelope awaitEvent(InProcessTransport.Subscription subscription) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        InProcessTransport.Envelope envelope;
+        while ((envelope = subscription.poll()) == null) {
+            check(System.currentTimeMillis() < deadline, "no event within 5 s");
+            Thread.sleep(1);
+        }
+        return envelope;
+    }
+
+    private static void check(boolean ok, String message) {
+        if (!ok) {
+            System.err.println("RingBufferCheck FAILED: " + message);
+            System.exit(1);
+        }
+    }
+}
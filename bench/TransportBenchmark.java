@@ -0,0 +1,72 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput benchmark for the in-process transport. Client threads send SUBMITANSWER
+ * requests with their own inbox, the listener replies to each request and publishes an
+ * event to the room of the player, and each client waits for its reply and event before
+ * sending the next request, so every operation is a full request, reply and event round
+ * trip through the ring buffers. The listener is a stub, so the queue lanes and the game
+ * handlers are not part of the measurement: they need a GameServer and its database.
+ *
+ * Run with: java -cp out TransportBenchmark [clients] [requestsPerClient]
+ */
+public class TransportBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        InProcessTransport transport = new InProcessTransport(1024);
+        transport.start(new MessageTransport.RequestListener() {
+            @Override
+            public void onRequest(int opcode, String[] fields, MessageTransport.ReplyAddress replyTo) {
+                transport.reply(replyTo, MessageCodec.WRONGANSWER, fields[0], "The answer does not evaluate to 24!");
+                List<String> players = Collections.singletonList(fields[0]);
+                transport.publish(0, players, MessageCodec.ENDGAME, fields[0], fields[1], fields[2]);
+            }
+
+            @Override
+            public void awaitProcessed() {
+            }
+        });
+
+        CountDownLatch done = new CountDownLatch(clients);
+        AtomicLong maxNanos = new AtomicLong();
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            String username = "player" + c;
+            new Thread(() -> {
+                RingBuffer<InProcessTransport.Envelope> inbox = transport.createInbox();
+                InProcessTransport.Subscription events = transport.subscribe(username);
+                for (int i = 0; i < requests; i++) {
+                    long sent = System.nanoTime();
+                    String correlationId = transport.request(inbox, MessageCodec.SUBMITANSWER, username, "8/(3-8/3)", "1.0");
+                    InProcessTransport.Envelope reply;
+                    while ((reply = inbox.poll()) == null) {
+                        Thread.yield();
+                    }
+                    if (!correlationId.equals(reply.correlationId)) {
+                        throw new IllegalStateException("reply " + reply.correlationId + " for request " + correlationId);
+                    }
+                    while (events.poll() == null) {
+                        Thread.yield();
+                    }
+                    long took = System.nanoTime() - sent;
+                    long max;
+                    while (took > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, took)) {
+                        // Retry until the max is updated or a larger one is recorded
+                    }
+                }
+                done.countDown();
+            }, "client-" + c).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        long total = (long) clients * requests;
+        transport.close();
+        System.out.printf("%d clients, %d round trips: %.0f round trips/s, avg %.1f us, max %.1f us%n",
+                clients, total, total * 1e9 / elapsed, elapsed / 1000.0 / requests, maxNanos.get() / 1000.0);
+    }
+}
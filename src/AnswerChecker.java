@@ -0,0 +1,217 @@
+import java.util.Arrays;
+
+/**
+ * Single pass checker for submitted answers. The expression is read once, left to right,
+ * with the shunting-yard algorithm: operands go on a stack of exact fractions held in
+ * primitive arrays, operators on a stack of chars, and each operator is applied as soon
+ * as precedence allows. No tree is built and nothing is boxed, and the stacks are reused,
+ * so a checker allocates nothing once its stacks have grown to the longest expression
+ * seen. It also checks that the answer uses each dealt card value exactly once.
+ * Accepts the same syntax as ExpressionParser. Instances are not thread safe.
+ */
+public class AnswerChecker {
+    public static final int CORRECT = 0;
+    public static final int WRONG_RESULT = 1;
+    public static final int WRONG_CARDS = 2;
+    public static final int INVALID = 3;
+
+    private static final char NEGATE = 'u';
+
+    private long[] nums = new long[16];
+    private long[] dens = new long[16];
+    private char[] ops = new char[16];
+    private int numTop;
+    private int opTop;
+    private final int[] unused = new int[SolvabilityTable.VALUES + 1];
+
+    /**
+     * Checks an answer.
+     * @param expr The expression submitted.
+     * @param values The values of the dealt cards.
+     * @param target The value the expression has to make.
+     * @return CORRECT, WRONG_RESULT, WRONG_CARDS or INVALID.
+     */
+    public int check(CharSequence expr, int[] values, long target) {
+        this.numTop = 0;
+        this.opTop = 0;
+        for (int i = 0; i < this.unused.length; i++) {
+            this.unused[i] = 0;
+        }
+        for (int value : values) {
+            this.unused[value]++;
+        }
+        boolean wrongCards = false;
+        boolean expectOperand = true;
+        int i = 0;
+        int len = expr.length();
+        while (i < len) {
+            char ch = expr.charAt(i);
+            if (ch == ' ') {
+                i++;
+                continue;
+            }
+            if (expectOperand) {
+                if (ch == '(') {
+                    this.pushOp('(');
+                    i++;
+                } else if (ch == '-') {
+                    this.pushOp(NEGATE);
+                    i++;
+                } else if (ch >= '0' && ch <= '9') {
+                    // Any literal other than an unused card value fails the card check, so
+                    // its value never matters and is not parsed beyond telling them apart
+                    long value = 0;
+                    int digits = 0;
+                    while (i < len && (ch = expr.charAt(i)) >= '0' && ch <= '9') {
+                        if (digits < 3) {
+                            value = value * 10 + ch - '0';
+                        }
+                        digits++;
+                        i++;
+                    }
+                    boolean decimal = i < len && expr.charAt(i) == '.';
+                    if (decimal) {
+                        i++;
+                        while (i < len && (ch = expr.charAt(i)) >= '0' && ch <= '9') {
+                            i++;
+                        }
+                    }
+                    if (decimal || digits > 2 || value > SolvabilityTable.VALUES || this.unused[(int) value] == 0) {
+                        wrongCards = true;
+                        value = 0;
+                    } else {
+                        this.unused[(int) value]--;
+                    }
+                    this.pushNum(value, 1);
+                    expectOperand = false;
+                } else {
+                    return INVALID;
+                }
+            } else {
+                if (ch == '+' || ch == '-' || ch == '*' || ch == '/') {
+                    int prec = precedence(ch);
+                    while (this.opTop > 0 && this.ops[this.opTop - 1] != '(' && precedence(this.ops[this.opTop - 1]) >= prec) {
+                        this.apply(this.ops[--this.opTop]);
+                    }
+                    this.pushOp(ch);
+                    expectOperand = true;
+                } else if (ch == ')') {
+                    while (this.opTop > 0 && this.ops[this.opTop - 1] != '(') {
+                        this.apply(this.ops[--this.opTop]);
+                    }
+                    if (this.opTop == 0) {
+                        return INVALID;
+                    }
+                    this.opTop--;
+                } else {
+                    return INVALID;
+                }
+                i++;
+            }
+        }
+        if (expectOperand) {
+            return INVALID;
+        }
+        while (this.opTop > 0) {
+            char op = this.ops[--this.opTop];
+            if (op == '(') {
+                return INVALID;
+            }
+            this.apply(op);
+        }
+        if (wrongCards) {
+            return WRONG_CARDS;
+        }
+        for (int value : values) {
+            if (this.unused[value] != 0) {
+                return WRONG_CARDS;
+            }
+        }
+        // Four card values cannot overflow a long, so the fraction is exact
+        long den = this.dens[0];
+        return den != 0 && this.nums[0] == target * den ? CORRECT : WRONG_RESULT;
+    }
+
+    private static int precedence(char op) {
+        switch (op) {
+            case '+':
+            case '-':
+                return 1;
+            case '*':
+            case '/':
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    private void apply(char op) {
+        if (op == NEGATE) {
+            this.nums[this.numTop - 1] = -this.nums[this.numTop - 1];
+            return;
+        }
+        this.numTop--;
+        long rn = this.nums[this.numTop];
+        long rd = this.dens[this.numTop];
+        int top = this.numTop - 1;
+        long ln = this.nums[top];
+        long ld = this.dens[top];
+        long n;
+        long d;
+        if (ld == 0 || rd == 0) {
+            // Division by zero propagates
+            this.dens[top] = 0;
+            return;
+        }
+        switch (op) {
+            case '+':
+                n = ln * rd + rn * ld;
+                d = ld * rd;
+                break;
+            case '-':
+                n = ln * rd - rn * ld;
+                d = ld * rd;
+                break;
+            case '*':
+                n = ln * rn;
+                d = ld * rd;
+                break;
+            default:
+                n = ln * rd;
+                d = ld * rn;
+        }
+        if (d < 0) {
+            n = -n;
+            d = -d;
+        }
+        long g = gcd(n < 0 ? -n : n, d);
+        this.nums[top] = n / g;
+        this.dens[top] = d / g;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a == 0 ? 1 : a;
+    }
+
+    private void pushNum(long num, long den) {
+        if (this.numTop == this.nums.length) {
+            this.nums = Arrays.copyOf(this.nums, this.numTop * 2);
+            this.dens = Arrays.copyOf(this.dens, this.numTop * 2);
+        }
+        this.nums[this.numTop] = num;
+        this.dens[this.numTop] = den;
+        this.numTop++;
+    }
+
+    private void pushOp(char op) {
+        if (this.opTop == this.ops.length) {
+            this.ops = Arrays.copyOf(this.ops, this.opTop * 2);
+        }
+        this.ops[this.opTop++] = op;
+    }
+}
@@ -0,0 +1,461 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of JDBC connections shared by the database service.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final ServerLog LOG = ServerLog.get(ConnectionPool.class);
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final int validationTimeoutSeconds;
+    private final int statementCacheSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService evictor;
+    private int total = 0;
+    private int active = 0;
+    private boolean closed = false;
+
+    // Statistics, guarded by lock
+    private long borrowCount = 0;
+    private long waitCount = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+    private long timeoutCount = 0;
+    private long evictedCount = 0;
+    private long invalidCount = 0;
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+
+    /**
+     * A bounded pool of JDBC connections.
+     * @param url The JDBC url to connect to.
+     * @param user The database user.
+     * @param password The password of the database user.
+     * @param minSize The number of connections kept open even when idle.
+     * @param maxSize The maximum number of connections open at once.
+     * @param borrowTimeoutMillis How long a borrower waits for a free connection.
+     * @param idleTimeoutMillis How long a connection above minSize may stay idle before it is closed.
+     * @param statementCacheSize The number of prepared statements cached per connection.
+     * @throws SQLException If the initial connections could not be opened.
+     */
+    public ConnectionPool(String url, String user, String password, int minSize, int maxSize,
+                          long borrowTimeoutMillis, long idleTimeoutMillis, int statementCacheSize) throws SQLException {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validationTimeoutSeconds = 2;
+        this.statementCacheSize = statementCacheSize;
+        for (int i = 0; i < minSize; i++) {
+            this.idle.push(new PooledConnection(this.open()));
+            this.total++;
+        }
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ConnectionPool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection from the pool, waiting up to the borrow timeout for one to become free.
+     * The connection is validated before it is handed out. Close the returned object to give it back.
+     * @return A pooled connection.
+     * @throws SQLException If no connection became available in time or a new one could not be opened.
+     */
+    public PooledConnection borrow() throws SQLException {
+        long start = System.nanoTime();
+        long remaining = TimeUnit.MILLISECONDS.toNanos(this.borrowTimeoutMillis);
+        boolean waited = false;
+        while (true) {
+            PooledConnection candidate = null;
+            boolean create = false;
+            lock.lock();
+            try {
+                while (true) {
+                    if (this.closed) {
+                        throw new SQLException("Connection pool is closed");
+                    }
+                    if (!this.idle.isEmpty()) {
+                        candidate = this.idle.pop();
+                        break;
+                    }
+                    if (this.total < this.maxSize) {
+                        this.total++;
+                        create = true;
+                        break;
+                    }
+                    if (remaining <= 0) {
+                        this.timeoutCount++;
+                        throw new SQLException("Timed out after " + this.borrowTimeoutMillis + " ms waiting for a database connection");
+                    }
+                    waited = true;
+                    try {
+                        remaining = this.available.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a database connection", e);
+                    }
+                }
+                this.active++;
+            } finally {
+                lock.unlock();
+            }
+
+            if (create) {
+                try {
+                    candidate = new PooledConnection(this.open());
+                } catch (SQLException e) {
+                    this.discard(null);
+                    throw e;
+                }
+            } else if (!this.validate(candidate)) {
+                this.discard(candidate);
+                continue;
+            }
+
+            long waitNanos = System.nanoTime() - start;
+            lock.lock();
+            try {
+                this.borrowCount++;
+                if (waited) {
+                    this.waitCount++;
+                }
+                this.totalWaitNanos += waitNanos;
+                this.maxWaitNanos = Math.max(this.maxWaitNanos, waitNanos);
+            } finally {
+                lock.unlock();
+            }
+            candidate.borrowed = true;
+            return candidate;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the pool statistics.
+     * @return The current statistics.
+     */
+    public Stats getStats() {
+        lock.lock();
+        try {
+            return new Stats(this.active, this.idle.size(), this.total, this.maxSize, this.borrowCount,
+                    this.waitCount, this.totalWaitNanos, this.maxWaitNanos, this.timeoutCount,
+                    this.evictedCount, this.invalidCount, this.statementHits.get(), this.statementMisses.get());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes all idle connections and refuses further borrows. Borrowed connections are closed when returned.
+     */
+    @Override
+    public void close() {
+        this.evictor.shutdownNow();
+        lock.lock();
+        try {
+            this.closed = true;
+            while (!this.idle.isEmpty()) {
+                this.closeQuietly(this.idle.pop());
+                this.total--;
+            }
+            this.available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Connection open() throws SQLException {
+        return DriverManager.getConnection(this.url, this.user, this.password);
+    }
+
+    private boolean validate(PooledConnection pc) {
+        try {
+            return pc.connection.isValid(this.validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gives a borrowed connection back to the pool.
+     */
+    private void release(PooledConnection pc) {
+        boolean broken;
+        try {
+            pc.resetStatements();
+            broken = pc.connection.isClosed();
+            if (!broken && !pc.connection.getAutoCommit()) {
+                // Never hand out a connection with a half finished transaction
+                pc.connection.rollback();
+                pc.connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            broken = true;
+        }
+        if (broken) {
+            this.discard(pc);
+            return;
+        }
+        lock.lock();
+        try {
+            this.active--;
+            if (this.closed) {
+                this.total--;
+                this.closeQuietly(pc);
+            } else {
+                pc.lastUsed = System.currentTimeMillis();
+                this.idle.push(pc);
+                this.available.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops a borrowed connection (or a reserved slot when pc is null) from the pool.
+     */
+    private void discard(PooledConnection pc) {
+        if (pc != null) {
+            this.closeQuietly(pc);
+        }
+        lock.lock();
+        try {
+            this.active--;
+            this.total--;
+            if (pc != null) {
+                this.invalidCount++;
+            }
+            this.available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes connections that have been idle longer than the idle timeout, keeping at least minSize open.
+     */
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - this.idleTimeoutMillis;
+        Deque<PooledConnection> evicted = new ArrayDeque<>();
+        lock.lock();
+        try {
+            // Least recently used connections sit at the bottom of the stack
+            Iterator<PooledConnection> it = this.idle.descendingIterator();
+            while (it.hasNext() && this.total > this.minSize) {
+                PooledConnection pc = it.next();
+                if (pc.lastUsed >= cutoff) {
+                    break;
+                }
+                it.remove();
+                this.total--;
+                this.evictedCount++;
+                evicted.push(pc);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (PooledConnection pc : evicted) {
+            this.closeQuietly(pc);
+        }
+    }
+
+    private void closeQuietly(PooledConnection pc) {
+        try {
+            pc.connection.close();
+        } catch (SQLException e) {
+            LOG.warn("Error closing pooled connection: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * A connection borrowed from the pool. Closing it returns it to the pool.
+     */
+    public class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+        private final List<PreparedStatement> used = new ArrayList<>();
+        private long lastUsed = System.currentTimeMillis();
+        private boolean borrowed = false;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75F, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (this.size() <= ConnectionPool.this.statementCacheSize) {
+                        return false;
+                    }
+                    try {
+                        eldest.getValue().close();
+                    } catch (SQLException e) {
+                        LOG.warn("Error closing cached statement: %s", e.getMessage());
+                    }
+                    return true;
+                }
+            };
+        }
+
+        /**
+         * Returns a prepared statement for the SQL, reusing the one cached on this connection
+         * if there is one. The statement belongs to the connection: do not close it, only
+         * its result sets. Parameters and batches are cleared when the connection is returned.
+         * @param sql The SQL text, which is also the cache key.
+         * @return The prepared statement.
+         * @throws SQLException If the statement could not be prepared.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = this.statements.get(sql);
+            if (stmt == null || stmt.isClosed()) {
+                ConnectionPool.this.statementMisses.incrementAndGet();
+                stmt = this.connection.prepareStatement(sql);
+                this.statements.put(sql, stmt);
+            } else {
+                ConnectionPool.this.statementHits.incrementAndGet();
+            }
+            this.used.add(stmt);
+            return stmt;
+        }
+
+        private void resetStatements() throws SQLException {
+            for (PreparedStatement stmt : this.used) {
+                if (!stmt.isClosed()) {
+                    stmt.clearBatch();
+                    stmt.clearParameters();
+                }
+            }
+            this.used.clear();
+        }
+
+        /**
+         * Returns the underlying JDBC connection. Do not close it directly.
+         * @return The JDBC connection.
+         */
+        public Connection get() {
+            return this.connection;
+        }
+
+        /**
+         * Returns the connection to the pool.
+         */
+        @Override
+        public void close() {
+            if (this.borrowed) {
+                this.borrowed = false;
+                ConnectionPool.this.release(this);
+            }
+        }
+    }
+
+    /**
+     * A point in time view of the pool, used for sizing it.
+     */
+    public static class Stats {
+        private final int active;
+        private final int idle;
+        private final int total;
+        private final int maxSize;
+        private final long borrowCount;
+        private final long waitCount;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+        private final long timeoutCount;
+        private final long evictedCount;
+        private final long invalidCount;
+        private final long statementHits;
+        private final long statementMisses;
+
+        Stats(int active, int idle, int total, int maxSize, long borrowCount, long waitCount, long totalWaitNanos,
+              long maxWaitNanos, long timeoutCount, long evictedCount, long invalidCount, long statementHits,
+              long statementMisses) {
+            this.active = active;
+            this.idle = idle;
+            this.total = total;
+            this.maxSize = maxSize;
+            this.borrowCount = borrowCount;
+            this.waitCount = waitCount;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.timeoutCount = timeoutCount;
+            this.evictedCount = evictedCount;
+            this.invalidCount = invalidCount;
+            this.statementHits = statementHits;
+            this.statementMisses = statementMisses;
+        }
+        public int getActive(){
+            return this.active;
+        }
+        public int getIdle(){
+            return this.idle;
+        }
+        public int getTotal(){
+            return this.total;
+        }
+        public long getBorrowCount(){
+            return this.borrowCount;
+        }
+        public long getWaitCount(){
+            return this.waitCount;
+        }
+        public double getAvgWaitMillis(){
+            return this.borrowCount == 0 ? 0 : this.totalWaitNanos / 1e6 / this.borrowCount;
+        }
+        public double getMaxWaitMillis(){
+            return this.maxWaitNanos / 1e6;
+        }
+        public long getTimeoutCount(){
+            return this.timeoutCount;
+        }
+        public long getStatementHits(){
+            return this.statementHits;
+        }
+        public long getStatementMisses(){
+            return this.statementMisses;
+        }
+        public double getStatementHitRate(){
+            long lookups = this.statementHits + this.statementMisses;
+            return lookups == 0 ? 0 : (double) this.statementHits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("active=%d idle=%d total=%d/%d borrows=%d waits=%d avgWait=%.3fms maxWait=%.3fms timeouts=%d evicted=%d invalid=%d stmtHits=%d stmtMisses=%d stmtHitRate=%.1f%%",
+                    this.active, this.idle, this.total, this.maxSize, this.borrowCount, this.waitCount,
+                    this.getAvgWaitMillis(), this.getMaxWaitMillis(), this.timeoutCount, this.evictedCount, this.invalidCount,
+                    this.statementHits, this.statementMisses, 100 * this.getStatementHitRate());
+        }
+    }
+}
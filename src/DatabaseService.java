@@ -1,13 +1,25 @@
 import java.io.*;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * The implemented database class.
  */
 public class DatabaseService implements Serializable {
     private static final long serialVersionUID = 1L;
-    private final Connection conn;
+    private static final ServerLog LOG = ServerLog.get(DatabaseService.class);
+    private final ConnectionPool pool;
+    private final Leaderboard leaderboard = new Leaderboard();
+    private final PresenceRegistry presence = new PresenceRegistry(Long.getLong("presence.idleTimeoutMs", 30 * 60 * 1000L));
+    private final UserCache cache = new UserCache(Integer.getInteger("db.cache.maxUsers", 10000));
+    private final Object rankLock = new Object();
 
     private static final String DB_HOST = "localhost";
     private static final String DB_USER = "c3358";
@@ -15,24 +27,50 @@ public class DatabaseService implements Serializable {
     private static final String DB_NAME = "c3358";
     public static final String ONLINE_USERS = "OnlineUsers";
     public static final String USER_INFO = "UserInfo";
+    // Upper bound on the number of users returned by one leaderboard page
+    public static final int MAX_PAGE_SIZE = 100;
+    // Pool sizing, overridable with -Ddb.pool.min=... etc.
+    private static final int POOL_MIN = Integer.getInteger("db.pool.min", 2);
+    private static final int POOL_MAX = Integer.getInteger("db.pool.max", 16);
+    private static final long POOL_BORROW_TIMEOUT_MS = Long.getLong("db.pool.borrowTimeoutMs", 5000L);
+    private static final long POOL_IDLE_TIMEOUT_MS = Long.getLong("db.pool.idleTimeoutMs", 60000L);
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("db.pool.statementCacheSize", 32);
+
+    // Statements prepared once per pooled connection and reused, keyed by their text
+    private static final String SQL_SELECT_USER = "SELECT * FROM " + USER_INFO + " WHERE name = ?";
+    private static final String SQL_SELECT_ALL_USERS = "SELECT * FROM " + USER_INFO + " ORDER BY ranking, name";
+    private static final String SQL_SELECT_PAGE = "SELECT * FROM " + USER_INFO + " ORDER BY ranking LIMIT ? OFFSET ?";
+    private static final String SQL_SELECT_AFTER_RANK = "SELECT * FROM " + USER_INFO + " WHERE ranking > ? ORDER BY ranking LIMIT ?";
+    private static final String SQL_AUTHENTICATE = "SELECT name FROM " + USER_INFO + " WHERE name = ? AND password = ?";
+    private static final String SQL_USER_EXISTS = "SELECT name FROM " + USER_INFO + " WHERE name = ?";
+    private static final String SQL_INSERT_USER = "INSERT INTO " + USER_INFO + " (name, password, games, wins, avg, ranking) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String SQL_UPDATE_RANK = "UPDATE " + USER_INFO + " SET ranking = ? WHERE name = ?";
+    // avg is assigned first so it still sees the old wins
+    private static final String SQL_UPDATE_STATS = "UPDATE " + USER_INFO + " " +
+            "SET avg = IF(wins + ? = 0, avg, ROUND((avg * wins + ?) / (wins + ?), 2)), " +
+            "    games = games + ?, " +
+            "    wins = wins + ? " +
+            "WHERE name = ?";
     public DatabaseService() {
         try {
             // Load the MySQL JDBC driver
             Class.forName("com.mysql.cj.jdbc.Driver").newInstance();
-            // Establish the connection
+            // Create the database if it doesn't exist, then pool connections to it
             String url = "jdbc:mysql://" + DB_HOST + "/?useSSL=true&allowPublicKeyRetrieval=true";
-            conn = DriverManager.getConnection(url, DB_USER, DB_PASS);
-            // Create the database if it doesn't exist
-            createDatabase(DB_NAME);
-            useDatabase(DB_NAME);
-            // Drop existing tables if they exist
-            dropTable(ONLINE_USERS);
-            dropTable(USER_INFO);
-            // Create the OnlineUsers and UserInfo tables
-            createTable(ONLINE_USERS, "(name VARCHAR(255) PRIMARY KEY)");
-            createTable(USER_INFO, "(name VARCHAR(255) PRIMARY KEY, password VARCHAR(255), games INT, wins INT, avg FLOAT, ranking INT)");
+            try (Connection conn = DriverManager.getConnection(url, DB_USER, DB_PASS)) {
+                createDatabase(conn, DB_NAME);
+            }
+            // Server side prepared statements, so the statements cached by the pool are parsed and planned once
+            String dbUrl = "jdbc:mysql://" + DB_HOST + "/" + DB_NAME + "?useSSL=true&allowPublicKeyRetrieval=true&useServerPrepStmts=true";
+            pool = new ConnectionPool(dbUrl, DB_USER, DB_PASS, POOL_MIN, POOL_MAX, POOL_BORROW_TIMEOUT_MS, POOL_IDLE_TIMEOUT_MS, STATEMENT_CACHE_SIZE);
+            LOG.info("Connection pool to %s ready: %s", DB_NAME, pool.getStats());
+            // Bring the tables up to date, keeping the existing data
+            try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+                new SchemaMigrations().migrate(pc.get());
+            }
             // Clear any existing online users
             clearOnlineUsers();
+            loadLeaderboard();
         } catch (SQLException | IllegalAccessException | InstantiationException | ClassNotFoundException e) {
             throw new RuntimeException(e);
         }
@@ -40,27 +78,15 @@ public class DatabaseService implements Serializable {
 
     /**
      * Creates a new database under the user.
+     * @param conn The connection to use.
      * @param name The name of the database.
      * @throws SQLException From SQL related strings.
      */
-    public void createDatabase(String name) throws SQLException {
+    private void createDatabase(Connection conn, String name) throws SQLException {
         try (Statement stmt = conn.createStatement()) {
             String sql = "CREATE DATABASE IF NOT EXISTS " + name;
             stmt.executeUpdate(sql);
-            System.out.println("Database created successfully (if not exists): " + name);
-        }
-    }
-
-    /**
-     * Makes the system use the given database.
-     * @param name The name of the database to be used.
-     * @throws SQLException From SQL related strings.
-     */
-    public void useDatabase(String name) throws SQLException {
-        try (Statement stmt = conn.createStatement()) {
-            String sql = "USE " + name;
-            stmt.executeUpdate(sql);
-            System.out.println("Switched to database: " + name);
+            LOG.info("Database created successfully (if not exists): %s", name);
         }
     }
 
@@ -71,10 +97,11 @@ public class DatabaseService implements Serializable {
      * @throws SQLException From SQL related strings.
      */
     public void createTable(String name, String fields) throws SQLException {
-        try (Statement stmt = conn.createStatement()) {
+        try (ConnectionPool.PooledConnection pc = pool.borrow();
+             Statement stmt = pc.get().createStatement()) {
             String sql = "CREATE TABLE IF NOT EXISTS " + name + " " + fields;
             stmt.executeUpdate(sql);
-            System.out.println("Table created successfully (if not exists): " + name);
+            LOG.info("Table created successfully (if not exists): %s", name);
         }
     }
 
@@ -84,62 +111,64 @@ public class DatabaseService implements Serializable {
      * @throws SQLException From SQL related strings.
      */
     public void dropTable(String name) throws SQLException {
-        try (Statement stmt = conn.createStatement()) {
+        try (ConnectionPool.PooledConnection pc = pool.borrow();
+             Statement stmt = pc.get().createStatement()) {
             String sql = "DROP TABLE IF EXISTS " + name;
             stmt.executeUpdate(sql);
-            System.out.println("Table " + name + " dropped successfully (if exists)");
+            LOG.info("Table %s dropped successfully (if exists)", name);
         }
     }
     /**
-     * Clears all users from OnlineUsers, used on server start up.
+     * Logs out all users, used on server start up.
      */
     public void clearOnlineUsers(){
-        try {
-            Statement stmt = conn.createStatement();
-            String sql = "DELETE FROM " + ONLINE_USERS;
-            int rowsAffected = stmt.executeUpdate(sql);
-            System.out.println("Cleared " + rowsAffected + " rows from " + ONLINE_USERS + " table.");
-            this.list(ONLINE_USERS);
-            stmt.close(); // Close the statement after use
-        } catch (SQLException e) {
-            System.err.println("Error clearing online users: " + e.getMessage());
-        }
+        int removed = this.presence.clear();
+        LOG.info("Cleared %d online users.", removed);
     }
 
     /**
-     * Logs in user by adding their name to OnlineUsers.
+     * Logs in user, unless they are already online.
      * @param username The username of the user.
+     * @return True if the user was logged in.
      */
-    public void loginUser(String username) {
-        try {
-            String sql = "INSERT INTO " + ONLINE_USERS + " (name) VALUES (?)";
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            stmt.setString(1, username);
-            int rowsAffected = stmt.executeUpdate();
-            System.out.println("Logged in username " + username + ". Rows affected: " + rowsAffected);
-            this.list(ONLINE_USERS);
-            stmt.close();
-        } catch (SQLException | IllegalArgumentException e) {
-            System.err.println("Error inserting record: " + e);
-        }
+    public boolean loginUser(String username) {
+        boolean loggedIn = this.presence.tryLogin(username);
+        LOG.debug("Login of %s: %s", username, loggedIn ? "ok" : "already online");
+        return loggedIn;
     }
 
     /**
-     * Logs out user by removing their name to OnlineUsers.
+     * Logs out user.
      * @param username The username of the user.
      */
     public void logoutUser(String username) {
-        try {
-            String sql = "DELETE FROM " + ONLINE_USERS + " WHERE name = ?";
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            stmt.setString(1, username);
-            int rowsAffected = stmt.executeUpdate();
-            System.out.println("Logged out user: " + username + ". Rows affected: " + rowsAffected);
-            this.list(ONLINE_USERS);
-            stmt.close();
-        } catch (SQLException | IllegalArgumentException e) {
-            System.err.println("Error inserting record: " + e);
-        }
+        this.presence.logout(username);
+        LOG.debug("Logged out user: %s", username);
+    }
+
+    /**
+     * Keeps the session of a user alive.
+     * @param username The username of the user.
+     * @return False if the session expired and the user has to log in again.
+     */
+    public boolean heartbeat(String username) {
+        return this.presence.heartbeat(username);
+    }
+
+    /**
+     * Sets the listener told about every session that expires without a logout.
+     * @param listener Called with the username of the expired session.
+     */
+    public void onSessionExpired(Consumer<String> listener) {
+        this.presence.setExpiryListener(listener);
+    }
+
+    /**
+     * Returns the users that are online, for the admin console.
+     * @return A copy of the usernames.
+     */
+    public List<String> getOnlineUsers() {
+        return this.presence.onlineUsers();
     }
 
     /**
@@ -148,81 +177,182 @@ public class DatabaseService implements Serializable {
      * @return An object of class User.
      */
     public User getUserData(String username) {
-        User user = null;
-        String sql = "SELECT * FROM " + USER_INFO + " WHERE name = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+        User user = this.cache.getUser(username);
+        if (user != null) {
+            return user;
+        }
+        long version = this.cache.version();
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement stmt = pc.prepare(SQL_SELECT_USER);
             stmt.setString(1, username);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
-                    user = new User(
-                            rs.getString("name"),
-                            rs.getInt("games"),
-                            rs.getInt("wins"),
-                            rs.getFloat("avg"),
-                            rs.getInt("ranking")
-                    );
+                    user = readUser(rs);
                 }
             }
         } catch (SQLException e) {
-            System.err.println("Error retrieving user: " + e.getMessage());
+            LOG.error("Error retrieving user: %s", e.getMessage());
         }
+        this.cache.putUser(user, version);
         return user;
     }
 
     /**
-     * Returns the data of all users from UserInfo.txt.
+     * Returns the data of all users from UserInfo.txt, sorted by rank.
      * @return An arraylist containing objects of class User.
      */
     public ArrayList<User> getAllUserData() {
+        ArrayList<User> cached = this.cache.getLeaderboard();
+        if (cached != null) {
+            return new ArrayList<>(cached);
+        }
+        long version = this.cache.version();
         ArrayList<User> allUserData = new ArrayList<>();
-        String sql = "SELECT * FROM " + USER_INFO;
-        try (PreparedStatement stmt = conn.prepareStatement(sql);
-             ResultSet rs = stmt.executeQuery()) {
+        try (ConnectionPool.PooledConnection pc = pool.borrow();
+             ResultSet rs = pc.prepare(SQL_SELECT_ALL_USERS).executeQuery()) {
             while (rs.next()) {
-                User user = new User(
-                        rs.getString("name"),
-                        rs.getInt("games"),
-                        rs.getInt("wins"),
-                        rs.getFloat("avg"),
-                        rs.getInt("ranking")
-                );
-                allUserData.add(user);
+                allUserData.add(readUser(rs));
             }
         } catch (SQLException e) {
-            System.err.println("Error retrieving all users: " + e.getMessage());
+            LOG.error("Error retrieving all users: %s", e.getMessage());
+            return allUserData;
+        }
+        this.cache.putLeaderboard(allUserData, version);
+        return new ArrayList<>(allUserData);
+    }
+
+    /**
+     * Returns the best ranked users.
+     * @param n The number of users, capped at MAX_PAGE_SIZE.
+     * @return The users sorted by rank.
+     */
+    public ArrayList<User> getTopUsers(int n) {
+        return this.getUserPage(0, n);
+    }
+
+    /**
+     * Returns a page of the leaderboard.
+     * @param offset The number of users to skip, starting from rank 1.
+     * @param limit The number of users, capped at MAX_PAGE_SIZE.
+     * @return The users sorted by rank.
+     */
+    public ArrayList<User> getUserPage(int offset, int limit) {
+        offset = Math.max(0, offset);
+        limit = clampLimit(limit);
+        ArrayList<User> cached = this.cache.getLeaderboard();
+        if (cached != null) {
+            return slice(cached, offset, limit);
         }
-        return allUserData;
+        return this.queryUsers(SQL_SELECT_PAGE, limit, offset);
     }
 
     /**
-     * Authenticates a user when logging in, checks if user exists in UserInfo.txt and not in OnlineUsers.txt.
+     * Returns the users ranked after a given rank, for paging with a cursor.
+     * @param afterRank The last rank the client already has, 0 for the first page.
+     * @param limit The number of users, capped at MAX_PAGE_SIZE.
+     * @return The users sorted by rank.
+     */
+    public ArrayList<User> getUsersAfterRank(int afterRank, int limit) {
+        afterRank = Math.max(0, afterRank);
+        limit = clampLimit(limit);
+        ArrayList<User> cached = this.cache.getLeaderboard();
+        if (cached != null) {
+            return slice(cached, afterRank, limit);
+        }
+        return this.queryUsers(SQL_SELECT_AFTER_RANK, afterRank, limit);
+    }
+
+    /**
+     * Returns the users ranked around a given user, including the user.
+     * @param username The username of the user.
+     * @param radius The number of users shown above and below.
+     * @return The users sorted by rank, empty if the user is unknown.
+     */
+    public ArrayList<User> getUsersAroundUser(String username, int radius) {
+        int rank = this.leaderboard.rankOf(username);
+        if (rank == 0) {
+            return new ArrayList<>();
+        }
+        radius = Math.max(0, Math.min(radius, MAX_PAGE_SIZE / 2));
+        int from = Math.max(1, rank - radius);
+        return this.getUsersAfterRank(from - 1, rank + radius - from + 1);
+    }
+
+    private static int clampLimit(int limit) {
+        return Math.max(0, Math.min(limit, MAX_PAGE_SIZE));
+    }
+
+    private static ArrayList<User> slice(ArrayList<User> users, int offset, int limit) {
+        int from = Math.min(offset, users.size());
+        int to = Math.min(from + limit, users.size());
+        return new ArrayList<>(users.subList(from, to));
+    }
+
+    /**
+     * Runs a query returning rows of UserInfo.
+     * @param sql The query with integer parameters.
+     * @param params The values of the parameters.
+     * @return The users read.
+     */
+    private ArrayList<User> queryUsers(String sql, int... params) {
+        ArrayList<User> users = new ArrayList<>();
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement stmt = pc.prepare(sql);
+            for (int i = 0; i < params.length; i++) {
+                stmt.setInt(i + 1, params[i]);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    users.add(readUser(rs));
+                }
+            }
+        } catch (SQLException e) {
+            LOG.error("Error retrieving users: %s", e.getMessage());
+        }
+        return users;
+    }
+
+    private static User readUser(ResultSet rs) throws SQLException {
+        return new User(
+                rs.getString("name"),
+                rs.getInt("games"),
+                rs.getInt("wins"),
+                rs.getFloat("avg"),
+                rs.getInt("ranking")
+        );
+    }
+
+    /**
+     * Authenticates a user when logging in, checks if user exists in UserInfo and is not online.
      * Used for old users.
      * @param username The username of the user.
      * @param password The password of the user.
      * @return True or False based on whether the user was authenticated or not.
      */
     public boolean authenticateUser(String username, String password) {
-        String sql = "SELECT u.name FROM " + USER_INFO + " u LEFT JOIN " + ONLINE_USERS + " o ON u.name = o.name WHERE u.name = ? AND u.password = ? AND o.name IS NULL";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+        if (this.presence.isOnline(username)) {
+            return false; // Already logged in, no need to ask the database
+        }
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement stmt = pc.prepare(SQL_AUTHENTICATE);
             stmt.setString(1, username);
             stmt.setString(2, password);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
                     String user = rs.getString(1);
                     if (user.equals(username)) {
-                        this.loginUser(username);
-                        return true; // User exists, password is correct, and not logged in
+                        return this.loginUser(username); // User exists and password is correct, logged in unless a concurrent login won
                     }
                 }
             }
         } catch (SQLException e) {
-            System.err.println("Error authenticating user: " + e.getMessage());
+            LOG.error("Error authenticating user: %s", e.getMessage());
         }
         return false; // User does not exist, password is incorrect, or already logged in
     }
 
     /**
-     * Registers the user by adding their details to UserInfo.txt and adds their username to OnlineUsers.txt.
+     * Registers the user by adding their details to UserInfo and logs them in.
      * Used for new users.
      * @param username The username of the user.
      * @param password The password of the user.
@@ -232,90 +362,150 @@ public class DatabaseService implements Serializable {
      * @return True or False based on whether the user was registered and logged in or not.
      */
     public boolean registerAndLoginUser(String username, String password, int numberOfGames, int numberOfWins, double avgTimeToGame) {
-        try {
-            // Check if the user already exists in either OnlineUsers or UserInfo
-            String checkSql = "SELECT name FROM " + USER_INFO + " WHERE name = ?";
-            try (PreparedStatement checkStmt = conn.prepareStatement(checkSql)) {
-                checkStmt.setString(1, username);
-                try (ResultSet rs = checkStmt.executeQuery()) {
-                    if (!rs.next()) {
-                        // User doesn't exist in either table, proceed with registration
-                        String insertSql = "INSERT INTO " + USER_INFO + " (name, password, games, wins, avg, ranking) VALUES (?, ?, ?, ?, ?, ?)";
-                        try (PreparedStatement insertStmt = conn.prepareStatement(insertSql)) {
-                            insertStmt.setString(1, username);
-                            insertStmt.setString(2, password);
-                            insertStmt.setInt(3, numberOfGames);
-                            insertStmt.setInt(4, numberOfWins);
-                            insertStmt.setDouble(5, avgTimeToGame);
-                            // Calculate the rank based on the number of existing users
-                            insertStmt.setInt(6, 0);
-                            // Insert user into UserInfo table
-                            int rowsAffected = insertStmt.executeUpdate();
-                            System.out.println("User '" + username + "' has been added to UserInfo. Rows affected: " + rowsAffected);
-                            this.list(USER_INFO);
-                            this.updateRanks();
-                            // Log in the user
-                            this.loginUser(username);
-                            return true; // Registration and login successful
-                        }
-                    }
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            // Check if the user already exists
+            PreparedStatement checkStmt = pc.prepare(SQL_USER_EXISTS);
+            checkStmt.setString(1, username);
+            try (ResultSet rs = checkStmt.executeQuery()) {
+                if (rs.next()) {
+                    return false;
                 }
             }
+            // User doesn't exist, proceed with registration
+            PreparedStatement insertStmt = pc.prepare(SQL_INSERT_USER);
+            insertStmt.setString(1, username);
+            insertStmt.setString(2, password);
+            insertStmt.setInt(3, numberOfGames);
+            insertStmt.setInt(4, numberOfWins);
+            insertStmt.setDouble(5, avgTimeToGame);
+            // The rank is filled in by updateRanks
+            insertStmt.setInt(6, 0);
+            // Insert user into UserInfo table
+            int rowsAffected = insertStmt.executeUpdate();
+            LOG.debug("User '%s' has been added to UserInfo. Rows affected: %d", username, rowsAffected);
+            this.leaderboard.put(username, numberOfGames, numberOfWins, (float) avgTimeToGame);
+            try {
+                this.cache.invalidate(this.updateRanks(pc));
+            } catch (SQLException e) {
+                // The user is registered, the ranks are written by the next rank update
+                LOG.warn("Error updating ranks after registering %s: %s", username, e.getMessage());
+            }
+            // Log in the user
+            return this.loginUser(username); // Registration and login successful
         } catch (SQLException e) {
-            System.err.println("Error registering and logging in user: " + e.getMessage());
+            LOG.error("Error registering and logging in user: %s", e.getMessage());
         }
         return false; // User already exists
     }
 
     /**
-     * Updates the rank of all users based on their games won.
+     * Reads every user into the in-memory leaderboard and the user cache, then fixes any stored
+     * rank that is out of date. The rows are streamed rather than buffered by the driver.
      */
-    public void updateRanks() {
-        try {
-            // SQL query to update ranks based on the specified criteria
-            String updateSql = "UPDATE " + USER_INFO + " AS u1 " +
-                    "JOIN (SELECT name, " + " RANK() OVER (ORDER BY wins DESC, games ASC, avg ASC, name ASC) AS new_rank " + "FROM " + USER_INFO + ") AS u2 " +
-                    "ON u1.name = u2.name " +
-                    "SET u1.ranking = u2.new_rank";
-            try (PreparedStatement stmt = conn.prepareStatement(updateSql)) {
-                int rowsAffected = stmt.executeUpdate();
-                System.out.println("Ranks updated for " + rowsAffected + " users.");
-                this.list(USER_INFO);
+    private void loadLeaderboard() {
+        long start = System.currentTimeMillis();
+        long version = this.cache.version();
+        ArrayList<User> snapshot = new ArrayList<>();
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            try (PreparedStatement stmt = pc.get().prepareStatement(SQL_SELECT_ALL_USERS,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                // Integer.MIN_VALUE makes MySQL Connector/J stream rows one at a time
+                stmt.setFetchSize(Integer.MIN_VALUE);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        User user = readUser(rs);
+                        this.leaderboard.load(user.getName(), user.getGamesPlayed(), user.getGamesWon(),
+                                user.getAvgTimeToGame(), user.getRank());
+                        snapshot.add(user);
+                    }
+                }
             }
+            this.cache.warm(snapshot, version);
+            LOG.info("Loaded %d users into the leaderboard in %d ms.", this.leaderboard.size(), System.currentTimeMillis() - start);
+            this.cache.invalidate(this.updateRanks(pc));
         } catch (SQLException e) {
-            System.err.println("Error updating ranks: " + e.getMessage());
+            LOG.error("Error loading leaderboard: %s", e.getMessage());
         }
     }
 
     /**
-     * Displays contents of table for viewing purposes.
-     * @param table The name of the table to be displayed.
+     * Writes the ranks that changed since the last update to UserInfo.
      */
-    private void list(String table) {
-        try {
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT * FROM " + table);
+    public void updateRanks() {
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            this.cache.invalidate(this.updateRanks(pc));
+        } catch (SQLException e) {
+            LOG.error("Error updating ranks: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the ranks that changed since the last update, on a connection the caller already holds.
+     * Ranks come from the in-memory leaderboard, so only the rows that actually moved are touched.
+     * If the write fails the changes are put back, so the next update writes them again.
+     * @param pc The connection to use, in auto-commit mode.
+     * @return The usernames whose rank changed.
+     * @throws SQLException If the ranks could not be written.
+     */
+    private Set<String> updateRanks(ConnectionPool.PooledConnection pc) throws SQLException {
+        // One writer at a time, so an older rank is never written over a newer one
+        synchronized (this.rankLock) {
+            Map<String, Integer> changed = this.leaderboard.drainRankChanges();
+            if (changed.isEmpty()) {
+                return changed.keySet();
+            }
+            try {
+                PreparedStatement stmt = pc.prepare(SQL_UPDATE_RANK);
+                for (Map.Entry<String, Integer> entry : changed.entrySet()) {
+                    stmt.setInt(1, entry.getValue());
+                    stmt.setString(2, entry.getKey());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            } catch (SQLException e) {
+                this.leaderboard.restoreRankChanges(changed.keySet());
+                throw e;
+            }
+            LOG.debug("Ranks updated for %d users.", changed.size());
+            return changed.keySet();
+        }
+    }
+
+    /**
+     * Displays contents of table for viewing purposes. This is an admin command, run with
+     * "dump" on the console of GameServer, and is never called from the request paths,
+     * since it reads the whole table. Online users are no longer stored in a table, they
+     * are listed by the "presence" command.
+     * @param table The name of the table to be displayed, USER_INFO or SCHEMA_VERSION.
+     * @return The contents of the table.
+     */
+    public String dumpTable(String table) {
+        if (!USER_INFO.equals(table) && !SchemaMigrations.SCHEMA_VERSION.equals(table)) {
+            throw new IllegalArgumentException("Unknown table: " + table);
+        }
+        StringBuilder out = new StringBuilder();
+        try (ConnectionPool.PooledConnection pc = pool.borrow();
+             Statement stmt = pc.get().createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT * FROM " + table)) {
             ResultSetMetaData metaData = rs.getMetaData();
             int columnCount = metaData.getColumnCount();
             // Print column names
             for (int i = 1; i <= columnCount; i++) {
-                System.out.format("%-15s", metaData.getColumnName(i));
+                out.append(String.format("%-15s", metaData.getColumnName(i)));
             }
-            System.out.println();
+            out.append(System.lineSeparator());
 
             // Print rows
             while (rs.next()) {
                 for (int i = 1; i <= columnCount; i++) {
-                    System.out.format("%-15s", rs.getString(i));
+                    out.append(String.format("%-15s", rs.getString(i)));
                 }
-                System.out.println();
+                out.append(System.lineSeparator());
             }
-            System.out.println();
-            rs.close();
-            stmt.close();
         } catch (SQLException e) {
-            System.err.println("Error listing records: " + e);
+            LOG.error("Error listing records: %s", e);
         }
+        return out.toString();
     }
 
     /**
@@ -325,32 +515,99 @@ public class DatabaseService implements Serializable {
      * @param time The time it took if the player won.
      */
     public void updatePlayerStats(String username, boolean playerWon, float time) {
-        int winChange = 1;
-        if (!playerWon){
-            winChange = 0;
-            time = 0.0F;
+        this.applyStatDeltas(Collections.singletonList(StatDelta.forGame(username, playerWon, time)));
+    }
+
+    /**
+     * Updates the statistics of everyone in a finished game at once.
+     * @param players The usernames of the players in the game.
+     * @param winner The username of the winner.
+     * @param time The time it took for the winner.
+     */
+    public void updateGameStats(Collection<String> players, String winner, float time) {
+        List<StatDelta> deltas = new ArrayList<>(players.size());
+        for (String player : players) {
+            deltas.add(StatDelta.forGame(player, Objects.equals(player, winner), time));
         }
-        // SQL query to update player stats
-        String sql = "UPDATE UserInfo " +
-                "SET games = games + ?, " +
-                "    avg = ROUND(((avg * wins + time * v2) / (wins + v2)), 2) " +
-                "    wins = wins + ?, " +
-                "WHERE name = ?";
-        try {
-             PreparedStatement pstmt = this.conn.prepareStatement(sql);
-            // Set parameters for the SQL query
-            pstmt.setInt(1, 1);
-            pstmt.setInt(2, winChange);
-            pstmt.setFloat(3, time);
-            pstmt.setInt(4, winChange);
-            pstmt.setInt(5, winChange);
-            pstmt.setString(6, username);
-            // Execute the SQL update
-            pstmt.executeUpdate();
-            System.out.println("Player stats updated successfully!");
-            this.updateRanks();
+        this.applyStatDeltas(deltas);
+    }
+
+    /**
+     * Applies statistic changes as a single batch in one transaction, followed by one rank update.
+     * The leaderboard only records the changes once they are committed, so a caller can retry
+     * a failed batch without counting a game twice. A failed rank update does not fail the
+     * batch, its changes are written by the next rank update.
+     * @param deltas The changes to apply, at most one per player.
+     * @return True if the changes were committed.
+     */
+    public boolean applyStatDeltas(Collection<StatDelta> deltas) {
+        if (deltas.isEmpty()) {
+            return true;
+        }
+        if (!this.writeStatDeltas(deltas)) {
+            return false;
+        }
+        List<String> changedUsers = new ArrayList<>(deltas.size());
+        for (StatDelta delta : deltas) {
+            this.leaderboard.record(delta.getName(), delta.getGames(), delta.getWins(), delta.getWinTime());
+            changedUsers.add(delta.getName());
+        }
+        this.cache.invalidate(changedUsers);
+        this.updateRanks();
+        LOG.debug("Player stats updated successfully for %d players!", deltas.size());
+        return true;
+    }
+
+    /**
+     * Writes statistic changes to UserInfo as a single batch in one transaction.
+     * @param deltas The changes to write, at most one per player.
+     * @return True if the transaction was committed.
+     */
+    private boolean writeStatDeltas(Collection<StatDelta> deltas) {
+        boolean committed = false;
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            Connection conn = pc.get();
+            conn.setAutoCommit(false);
+            try {
+                PreparedStatement pstmt = pc.prepare(SQL_UPDATE_STATS);
+                for (StatDelta delta : deltas) {
+                    pstmt.setInt(1, delta.getWins());
+                    pstmt.setFloat(2, delta.getWinTime());
+                    pstmt.setInt(3, delta.getWins());
+                    pstmt.setInt(4, delta.getGames());
+                    pstmt.setInt(5, delta.getWins());
+                    pstmt.setString(6, delta.getName());
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                conn.commit();
+                committed = true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
         } catch (SQLException e) {
-            System.out.println(e.getMessage());
+            LOG.error("Error updating player stats: %s", e.getMessage());
         }
+        // Once committed, a failure to reset or return the connection must not make the caller retry
+        return committed;
+    }
+
+    /**
+     * Returns the connection pool statistics, used for sizing the pool, including the statement cache hit rate.
+     * @return The current pool statistics.
+     */
+    public ConnectionPool.Stats getPoolStats() {
+        return this.pool.getStats();
+    }
+
+    /**
+     * Returns a summary of the user cache, including its hit rate.
+     * @return The cache summary.
+     */
+    public String getCacheStats() {
+        return this.cache.toString();
     }
 }
@@ -11,12 +11,146 @@ Expressions may contain brackets ( ), operators *,-,/,+ and numbers with optiona
 <digit> ::= "0" | "1" | "2" | "3" | "4" | "5" | "6" | "7" | "8" | "9"
 
 23-12-2022: initial release: storing expression as binary tree
+exact evaluation: evaluatesTo() checks the result with rational arithmetic, numerator and
+denominator are longs and the evaluation falls back to BigInteger only if a long overflows.
+The exact result is kept in fields instead of objects, so instances are not thread safe.
 */
 
+import java.math.BigInteger;
+
 public class ExpressionParser {
 
     final static int MaxNumOfDigit = 38; // max number of digits for numbers
 
+    // result of the last exactEval call, a zero denominator means division by zero
+    private long resultNum;
+    private long resultDen;
+
+    //public method that checks with exact rational arithmetic whether expression 'p' evaluates to 'target'
+    public boolean evaluatesTo(Node p, long target) {
+        try {
+            exactEval(p);
+            return resultDen != 0 && resultNum == Math.multiplyExact(target, resultDen);
+        } catch (ArithmeticException overflow) {//rare, numbers too large for long
+            BigInteger[] r = bigEval(p);
+            return r != null && r[0].equals(BigInteger.valueOf(target).multiply(r[1]));
+        }
+    }
+
+    private void exactEval(Node p) {
+        if (p == null) {
+            resultNum = 0;
+            resultDen = 1;
+            return;
+        }
+        if (p.type == Type.number) {
+            if (p.bigNum != null)
+                throw new ArithmeticException("number too large");
+            resultNum = p.exactNum;
+            resultDen = p.exactDen;
+            return;
+        }
+        exactEval(p.left);
+        if (p.type == Type.minus) {
+            resultNum = Math.negateExact(resultNum);
+            return;
+        }
+        long ln = resultNum, ld = resultDen;
+        exactEval(p.right);
+        long rn = resultNum, rd = resultDen;
+        if (ld == 0 || rd == 0) {//division by zero propagates
+            resultDen = 0;
+            return;
+        }
+        long n, d;
+        switch (p.type) {
+            case add:
+                n = Math.addExact(Math.multiplyExact(ln, rd), Math.multiplyExact(rn, ld));
+                d = Math.multiplyExact(ld, rd);
+                break;
+            case subtract:
+                n = Math.subtractExact(Math.multiplyExact(ln, rd), Math.multiplyExact(rn, ld));
+                d = Math.multiplyExact(ld, rd);
+                break;
+            case multiply:
+                n = Math.multiplyExact(ln, rn);
+                d = Math.multiplyExact(ld, rd);
+                break;
+            case divide:
+                if (rn == 0) {
+                    resultDen = 0;
+                    return;
+                }
+                n = Math.multiplyExact(ln, rd);
+                d = Math.multiplyExact(ld, rn);
+                break;
+            default://will never happen
+                throw new RuntimeException("unexpected type: " + p.type);
+        }
+        if (d < 0) {
+            n = Math.negateExact(n);
+            d = -d;
+        }
+        long g = gcd(Math.abs(n), d);
+        resultNum = n / g;
+        resultDen = d / g;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a == 0 ? 1 : a;
+    }
+
+    //BigInteger evaluation, returns {numerator, denominator} or null on division by zero
+    private BigInteger[] bigEval(Node p) {
+        if (p == null)
+            return new BigInteger[] {BigInteger.ZERO, BigInteger.ONE};
+        if (p.type == Type.number)
+            return p.bigNum != null ? new BigInteger[] {p.bigNum, p.bigDen}
+                    : new BigInteger[] {BigInteger.valueOf(p.exactNum), BigInteger.valueOf(p.exactDen)};
+        BigInteger[] l = bigEval(p.left);
+        if (l == null)
+            return null;
+        if (p.type == Type.minus)
+            return new BigInteger[] {l[0].negate(), l[1]};
+        BigInteger[] r = bigEval(p.right);
+        if (r == null)
+            return null;
+        BigInteger n, d;
+        switch (p.type) {
+            case add:
+                n = l[0].multiply(r[1]).add(r[0].multiply(l[1]));
+                d = l[1].multiply(r[1]);
+                break;
+            case subtract:
+                n = l[0].multiply(r[1]).subtract(r[0].multiply(l[1]));
+                d = l[1].multiply(r[1]);
+                break;
+            case multiply:
+                n = l[0].multiply(r[0]);
+                d = l[1].multiply(r[1]);
+                break;
+            case divide:
+                if (r[0].signum() == 0)
+                    return null;
+                n = l[0].multiply(r[1]);
+                d = l[1].multiply(r[0]);
+                break;
+            default://will never happen
+                throw new RuntimeException("unexpected type: " + p.type);
+        }
+        if (d.signum() < 0) {
+            n = n.negate();
+            d = d.negate();
+        }
+        BigInteger g = n.gcd(d);
+        return g.signum() == 0 ? new BigInteger[] {n, d} : new BigInteger[] {n.divide(g), d.divide(g)};
+    }
+
     //public method that evaluates an expression stored in binary tree 'p'
     public double evaluate(Node p) {
         if (p != null) {
@@ -118,12 +252,17 @@ public class ExpressionParser {
             n2.left = factor(sh);
             return n2;
         } else if (ch >= '0' && ch <= '9') {
+            int start = sh.pointer - 1;
             double num = 0; int nDigits = 0;
+            long exactNum = 0, exactDen = 1; boolean exact = true;
             while (ch != null) {
                 if (nDigits < MaxNumOfDigit) {
                     num = num * 10 + ch - '0';
                     nDigits++;
                 } else num = num * 10;
+                if (exact && exactNum <= (Long.MAX_VALUE - 9) / 10)
+                    exactNum = exactNum * 10 + ch - '0';
+                else exact = false;
                 ch = sh.nextChar("0123456789");
             }
             if (sh.nextChar(".") != null) {//ch != null --> ch == '.'
@@ -131,9 +270,28 @@ public class ExpressionParser {
                 while ((ch = sh.nextChar("0123456789")) != null) {
                     m = m * 0.1;
                     num = num + (ch - '0') * m;
+                    if (exact && exactNum <= (Long.MAX_VALUE - 9) / 10 && exactDen <= Long.MAX_VALUE / 10) {
+                        exactNum = exactNum * 10 + ch - '0';
+                        exactDen = exactDen * 10;
+                    } else exact = false;
                 }
             }
-            return new Node(num);
+            Node n = new Node(num);
+            if (exact) {
+                long g = gcd(exactNum, exactDen);
+                n.exactNum = exactNum / g;
+                n.exactDen = exactDen / g;
+            } else {//too many digits for a long, keep the exact value as BigInteger
+                String text = sh.expr.substring(start, sh.pointer).replace(" ", "");
+                int dot = text.indexOf('.');
+                String digits = dot < 0 ? text : text.substring(0, dot) + text.substring(dot + 1);
+                BigInteger bn = new BigInteger(digits.isEmpty() ? "0" : digits);
+                BigInteger bd = BigInteger.TEN.pow(dot < 0 ? 0 : text.length() - dot - 1);
+                BigInteger g = bn.gcd(bd);
+                n.bigNum = bn.divide(g);
+                n.bigDen = bd.divide(g);
+            }
+            return n;
         } else return null;
     }
 
@@ -146,6 +304,10 @@ public class ExpressionParser {
         private Node left;
         private Node right;
         private double num;
+        private long exactNum;//exact value of a number node as a reduced fraction
+        private long exactDen = 1;
+        private BigInteger bigNum;//only set if the exact value does not fit in a long
+        private BigInteger bigDen;
 
         Node(Type type) {//generic node constructor
             this.type = type;
@@ -1,79 +1,213 @@
-import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
-import java.util.Random;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * A game room, run as a state machine: WAITING, then RUNNING, then ENDED. The state and
+ * the players are held in one immutable snapshot that is replaced with compare-and-set,
+ * so joins, leaves, timers and answers never block each other, and the game starts and
+ * ends exactly once no matter which thread gets there first.
+ */
 public class Game {
+    private static final ServerLog LOG = ServerLog.get(Game.class);
+    // 0 disables the round timeout
+    private static final long ROUND_TIMEOUT_MS = Long.getLong("game.roundTimeoutMs", 180000L);
+
     /**
      * The class that runs the game.
      * @param server The server class.
+     * @param id The id of the game room.
      */
-    public Game(GameServer server){
+    public Game(GameServer server, int id){
         this.server = server;
-        this.runTimer();
+        this.id = id;
+        this.numbers = new ArrayList<>(4);
+        for (int card : server.hands.deal(ThreadLocalRandom.current())){
+            this.values[this.numbers.size()] = SolvabilityTable.valueOf(card);
+            this.numbers.add(card);
+        }
     }
-    private final ArrayList<Integer> numbers = this.generateNumbers(1, 52, 4);
+    private final int id;
+    private volatile ScheduledFuture<?> roundTimer;
+    private final ArrayList<Integer> numbers;
+    private final int[] values = new int[4];
     private final int ans = 24;
-    private GameServer server;
-    private ArrayList<User> players = new ArrayList<>();
-    public boolean started = false;
-    public boolean ended = false;
-    private boolean timeElapsed = false;
-    private ExpressionParser expressionParser;
+    private final GameServer server;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.INITIAL);
+    // The checker reuses its stacks, so each listener thread gets its own
+    private static final ThreadLocal<AnswerChecker> CHECKER = ThreadLocal.withInitial(AnswerChecker::new);
+
+    /**
+     * The lifecycle states of a game.
+     */
+    public enum State { WAITING, RUNNING, ENDED }
+
+    /**
+     * Returns the id of the game room.
+     * @return The id.
+     */
+    public int getId(){
+        return this.id;
+    }
+
+    /**
+     * Returns the usernames of the players in game.
+     * @return The usernames.
+     */
+    public ArrayList<String> getPlayerNames(){
+        List<User> players = this.snapshot.get().players;
+        ArrayList<String> names = new ArrayList<>(players.size());
+        for (User user: players){
+            names.add(user.getName());
+        }
+        return names;
+    }
 
     /**
      * Returns number of players in game.
      * @return The number of players.
      */
     public int playerCount(){
-        return this.players.size();
+        return this.snapshot.get().players.size();
     }
 
     /**
-     * Runs the timer to check start conditions.
+     * Returns a solution for the dealt cards, for hints and for revealing the answer when
+     * nobody solved the hand. Kept on the server so clients cannot look it up.
+     * @return An expression making 24.
      */
-    private void runTimer(){
-        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-        scheduler.schedule(() -> {
-            this.timeElapsed = true;
-            if (this.checkGameStartConditions() && !this.started){
-                this.playGame();
-            }
-            scheduler.shutdown();
-        }, 10, TimeUnit.SECONDS);
+    public String getSolution(){
+        return this.server.hands.solutionFor(this.values[0], this.values[1], this.values[2], this.values[3]);
     }
 
     /**
-     * Adds a player to the game.
-     * @param name Username of the player.
-     * @param wins The number of wins the player has.
-     * @param avg The average time to win for the player.
+     * Returns the lifecycle state of the game.
+     * @return The state.
      */
-    public synchronized void addPlayer(String name, int wins, float avg){
-        this.players.add(new User(name, 0, wins, avg, 0));
-        if (this.checkGameStartConditions()){
-            this.playGame();
+    public State getState(){
+        return this.snapshot.get().state;
+    }
+
+    /**
+     * Returns whether the game has started, it may have ended since.
+     * @return True if the game started.
+     */
+    public boolean isStarted(){
+        return this.snapshot.get().state != State.WAITING;
+    }
+
+    /**
+     * Returns whether the game has ended.
+     * @return True if the game ended.
+     */
+    public boolean isEnded(){
+        return this.snapshot.get().state == State.ENDED;
+    }
+
+    /**
+     * Ends the game without a winner once the round timeout has run out, revealing a solution.
+     */
+    private void onRoundTimeout(){
+        if (!this.transitionToEnded()){
+            return;
         }
+        LOG.info("Game %d timed out without a winner", this.id);
+        this.server.topicPublisher.endGame(this.id, this.getPlayerNames(), "", this.getSolution(), 0.0F);
+        this.server.rooms.release(this);
     }
 
     /**
-     * Checks the starting conditions of the game.
-     * @return True or False on whether to start the game.
+     * Cancels the round timer of the game, used when the room is recycled.
      */
-    public boolean checkGameStartConditions(){
-        return this.playerCount() == 4 || (this.timeElapsed && this.playerCount() > 1);
+    public void cancelTimers(){
+        GameScheduler.cancel(this.roundTimer);
     }
 
     /**
-     * Starts the game.
+     * Seats the players of a new room without starting the game, before the room is
+     * visible to other threads.
+     * @param players The players, at most four.
      */
-    private void playGame(){
-        System.out.println("Starting game");
-        this.started = true;
-        this.server.topicPublisher.startGame(this.numbers, this.players);
+    public void seat(List<User> players){
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = this.snapshot.get();
+            next = current;
+            for (User player : players){
+                next = next.withPlayer(new User(player.getName(), 0, player.getGamesWon(), player.getAvgTimeToGame(), 0));
+            }
+        } while (!this.snapshot.compareAndSet(current, next));
+    }
+
+    /**
+     * Starts the game right away if it has enough players and has not started yet.
+     * @return False if the game is still waiting because players left before it started.
+     */
+    public boolean start(){
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = this.snapshot.get();
+            if (current.state != State.WAITING){
+                return true;
+            }
+            if (current.players.size() < Matchmaker.MIN_PLAYERS){
+                return false;
+            }
+            next = current.withState(State.RUNNING);
+        } while (!this.snapshot.compareAndSet(current, next));
+        this.playGame(next);
+        return true;
+    }
+
+    /**
+     * Ends a game that never started and releases its room, so the players that are left
+     * can be matched again.
+     * @return The players that were left, empty if the game had started meanwhile.
+     */
+    public List<User> disband(){
+        Snapshot current;
+        do {
+            current = this.snapshot.get();
+            if (current.state != State.WAITING){
+                return Collections.emptyList();
+            }
+        } while (!this.snapshot.compareAndSet(current, current.withState(State.ENDED)));
+        LOG.info("Game %d lost its players before it started, %d left", this.id, current.players.size());
+        this.server.rooms.release(this);
+        return current.players;
+    }
+
+    /**
+     * Starts the game, called once by the thread that moved it to RUNNING.
+     * @param started The snapshot the game started with.
+     */
+    private void playGame(Snapshot started){
+        LOG.debug("Starting game %d", this.id);
+        if (ROUND_TIMEOUT_MS > 0){
+            this.roundTimer = this.server.scheduler.schedule(this::onRoundTimeout, ROUND_TIMEOUT_MS);
+        }
+        this.server.topicPublisher.startGame(this.id, this.numbers, new ArrayList<>(started.players));
+    }
+
+    /**
+     * Moves the game to ENDED.
+     * @return True for the one caller that ended the game.
+     */
+    private boolean transitionToEnded(){
+        Snapshot current;
+        do {
+            current = this.snapshot.get();
+            if (current.state == State.ENDED){
+                return false;
+            }
+        } while (!this.snapshot.compareAndSet(current, current.withState(State.ENDED)));
+        return true;
     }
 
     /**
@@ -82,15 +216,14 @@ public class Game {
      * @param ansString The answer string of the winner.
      * @param time The time it took for the winner.
      */
-    public synchronized void endGame(String username, String ansString, float time){
-        if (!this.ended){
-            this.ended = true;
-            this.server.topicPublisher.endGame(username, ansString, time);
-            for (User user: this.players){
-                this.server.db.updatePlayerStats(user.getName(), Objects.equals(user.getName(), username), time);
-            }
-            this.server.renewGameObj();
+    public void endGame(String username, String ansString, float time){
+        if (!this.transitionToEnded()){
+            return;
         }
+        ArrayList<String> players = this.getPlayerNames();
+        this.server.topicPublisher.endGame(this.id, players, username, ansString, time);
+        this.server.stats.submitGame(players, username, time);
+        this.server.rooms.release(this);
     }
 
     /**
@@ -99,15 +232,15 @@ public class Game {
      * @return The answer is correct or the error.
      */
     public String checkAns(String ansString){
-        try {
-            double result = this.expressionParser.evaluate(this.expressionParser.parseExpression(ansString));
-            if (result == 24){
+        switch (CHECKER.get().check(ansString, this.values, this.ans)){
+            case AnswerChecker.CORRECT:
                 return "Right Answer";
-            } else {
+            case AnswerChecker.WRONG_RESULT:
                 return "The answer does not evaluate to 24!";
-            }
-        } catch (Exception ex){
-           return "The expression is not valid!";
+            case AnswerChecker.WRONG_CARDS:
+                return "The answer must use each card exactly once!";
+            default:
+                return "The expression is not valid!";
         }
     }
 
@@ -116,25 +249,49 @@ public class Game {
      * @param username The username of the player to be removed.
      */
     public void removePlayer(String username){
-        User rem = null;
-        for (User user : this.players){
-            if (Objects.equals(user.getName(), username)){
-                rem = user;
-                break;
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = this.snapshot.get();
+            next = current.withoutPlayer(username);
+            if (next == current){
+                return;
             }
+        } while (!this.snapshot.compareAndSet(current, next));
+    }
+    /**
+     * An immutable view of the state and players of the game.
+     */
+    private static final class Snapshot {
+        private static final Snapshot INITIAL = new Snapshot(State.WAITING, Collections.<User>emptyList());
+        private final State state;
+        private final List<User> players;
+
+        private Snapshot(State state, List<User> players){
+            this.state = state;
+            this.players = players;
+        }
+
+        private Snapshot withState(State state){
+            return new Snapshot(state, this.players);
         }
-        this.players.remove(rem);
-    }
-    private ArrayList<Integer> generateNumbers(int min, int max, int count) {
-        ArrayList<Integer> numbers = new ArrayList<>();
-        Random random = new Random();
-        while (numbers.size() < count) {
-            int randomNumber = random.nextInt(max - min + 1) + min;
-            if (!numbers.contains(randomNumber)) {
-                numbers.add(randomNumber);
+
+        private Snapshot withPlayer(User user){
+            List<User> players = new ArrayList<>(this.players.size() + 1);
+            players.addAll(this.players);
+            players.add(user);
+            return new Snapshot(this.state, Collections.unmodifiableList(players));
+        }
+
+        private Snapshot withoutPlayer(String username){
+            for (int i = 0; i < this.players.size(); i++){
+                if (Objects.equals(this.players.get(i).getName(), username)){
+                    List<User> players = new ArrayList<>(this.players);
+                    players.remove(i);
+                    return new Snapshot(this.state, Collections.unmodifiableList(players));
+                }
             }
+            return this;
         }
-        return numbers;
     }
-
 }
@@ -0,0 +1,128 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many games at once. Groups of players formed by the matchmaker each get their
+ * own room. Every player is mapped to the id of their room, so answers and leaves are
+ * routed to the right game, and finished or abandoned rooms are removed so they can be
+ * garbage collected.
+ */
+public class GameRoomManager {
+    private static final ServerLog LOG = ServerLog.get(GameRoomManager.class);
+    public static final int MAX_PLAYERS = 4;
+    private static final int MAX_ROOMS = Integer.getInteger("game.maxRooms", 1000);
+    private static final long REAP_INTERVAL_MS = Long.getLong("game.reapIntervalMs", 30000L);
+
+    private final GameServer server;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final Map<Integer, Game> rooms = new ConcurrentHashMap<>();
+    private final Map<String, Integer> playerRooms = new ConcurrentHashMap<>();
+
+    /**
+     * Manager of the game rooms.
+     * @param server The game server.
+     */
+    public GameRoomManager(GameServer server) {
+        this.server = server;
+        server.scheduler.scheduleRepeating(this::reapIdleRooms, REAP_INTERVAL_MS);
+    }
+
+    /**
+     * Opens a room for a group of matched players. Starting the room publishes STARTGAME,
+     * so the caller starts it with Game.start once it no longer holds any lock.
+     * @param players The players, between two and four.
+     * @return The room, or null if all rooms are in use.
+     */
+    public synchronized Game openRoom(List<User> players) {
+        if (this.rooms.size() >= MAX_ROOMS) {
+            return null;
+        }
+        Game room = new Game(this.server, this.nextId.getAndIncrement());
+        // Seated before it is published, so the reaper never sees the new room empty
+        room.seat(players);
+        this.rooms.put(room.getId(), room);
+        for (User player : players) {
+            this.playerRooms.put(player.getName(), room.getId());
+        }
+        LOG.debug("Opened room %d for %d players, %d rooms active", room.getId(), players.size(), this.rooms.size());
+        return room;
+    }
+
+    /**
+     * Returns the room a player is in.
+     * @param username The username of the player.
+     * @return The room, or null if the player is not in one.
+     */
+    public Game roomOf(String username) {
+        Integer id = this.playerRooms.get(username);
+        return id == null ? null : this.rooms.get(id);
+    }
+
+    /**
+     * Returns a room by its id.
+     * @param id The id of the room.
+     * @return The room, or null if there is no such room.
+     */
+    public Game get(int id) {
+        return this.rooms.get(id);
+    }
+
+    /**
+     * Removes a player from their room, recycling the room once nobody is left in it.
+     * @param username The username of the player.
+     */
+    public synchronized void leave(String username) {
+        Integer id = this.playerRooms.remove(username);
+        Game room = id == null ? null : this.rooms.get(id);
+        if (room == null) {
+            return;
+        }
+        room.removePlayer(username);
+        if (room.playerCount() == 0) {
+            this.release(room);
+        }
+    }
+
+    /**
+     * Removes a finished or abandoned room. A room that is still being played is kept, so a
+     * caller that saw the room idle before it got the lock cannot release it.
+     * @param room The room.
+     */
+    public synchronized void release(Game room) {
+        if (!room.isEnded() && room.playerCount() > 0) {
+            return;
+        }
+        if (this.rooms.remove(room.getId()) == null) {
+            return;
+        }
+        room.cancelTimers();
+        // Only forget players that were not moved to another room meanwhile
+        for (String name : room.getPlayerNames()) {
+            this.playerRooms.remove(name, room.getId());
+        }
+        LOG.debug("Released room %d, %d rooms active", room.getId(), this.rooms.size());
+    }
+
+    /**
+     * Releases rooms that ended or lost all their players but were not released, so a
+     * missed release can never leak a room.
+     */
+    private void reapIdleRooms() {
+        for (Game room : this.rooms.values()) {
+            if (room.isEnded() || room.playerCount() == 0) {
+                LOG.info("Reaping idle room %d", room.getId());
+                this.release(room);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of active rooms.
+     * @return The number of rooms.
+     */
+    public int roomCount() {
+        return this.rooms.size();
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The one scheduler shared by every game lifecycle timer: start countdowns, round
+ * timeouts, room reaping and matchmaking ticks. The number of threads is fixed, so it
+ * does not grow with the number of rooms, and cancelled timers are removed from the
+ * queue right away so recycled rooms do not leave work behind.
+ */
+public class GameScheduler {
+    private static final ServerLog LOG = ServerLog.get(GameScheduler.class);
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Shared scheduler for game timers.
+     * @param threads The number of timer threads.
+     */
+    public GameScheduler(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread t = new Thread(r, "GameScheduler-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Runs a task once after a delay.
+     * @param task The task.
+     * @param delayMillis The delay in milliseconds.
+     * @return The handle used to cancel the timer.
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return this.executor.schedule(guard(task), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task repeatedly with a fixed delay between runs.
+     * @param task The task.
+     * @param periodMillis The delay between runs in milliseconds.
+     * @return The handle used to cancel the timer.
+     */
+    public ScheduledFuture<?> scheduleRepeating(Runnable task, long periodMillis) {
+        return this.executor.scheduleWithFixedDelay(guard(task), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels a timer if it has not fired yet.
+     * @param timer The timer, may be null.
+     */
+    public static void cancel(ScheduledFuture<?> timer) {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    /**
+     * Returns the number of timers waiting to fire.
+     * @return The number of pending timers.
+     */
+    public int pending() {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * Stops all timers.
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    // An exception would silently cancel a repeating task, so log it and keep going
+    private static Runnable guard(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.error(e, "Timer task failed");
+            }
+        };
+    }
+}
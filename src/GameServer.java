@@ -1,8 +1,12 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -10,16 +14,35 @@ import java.util.Objects;
  */
 public class GameServer extends UnicastRemoteObject implements RemoteServerInterface {
     private static final long serialVersionUID = 1L;
+    private static final ServerLog LOG = ServerLog.get(GameServer.class);
+    // Reads admin commands from standard input, false when the server runs detached
+    private static final boolean ADMIN_CONSOLE = Boolean.parseBoolean(System.getProperty("admin.console", "true"));
     public DatabaseService db;
-    public Game game = new Game(this);
+    public StatsWriteBehind stats;
+    public SolvabilityTable hands = new SolvabilityTable();
+    public GameScheduler scheduler = new GameScheduler(Integer.getInteger("game.timerThreads", 1));
+    public GameRoomManager rooms = new GameRoomManager(this);
+    public Matchmaker matchmaker = new Matchmaker(this.rooms, this.scheduler);
+    public MessageTransport transport;
     public JMSQueueClient queue;
     public JMSTopicPublisher topicPublisher;
     GameServer() throws RemoteException {
         super();
         this.db = new DatabaseService();
-        this.queue = new JMSQueueClient(this, "localhost");
-        this.topicPublisher = new JMSTopicPublisher(this, "localhost");
+        // A crashed client never logs out, its room is freed once its session expires
+        this.db.onSessionExpired(this::removePlayer);
+        this.stats = new StatsWriteBehind(this.db);
+        this.transport = MessageTransport.create(System.getProperty("transport", "jms"), "localhost");
+        this.queue = new JMSQueueClient(this, this.transport);
+        this.topicPublisher = new JMSTopicPublisher(this, this.transport);
         this.queue.startListening();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // The transport stops delivering and acknowledges what the lanes handled first,
+            // then the lanes finish, and only then the stats the games submitted are flushed
+            this.transport.close();
+            this.queue.close();
+            this.stats.shutdown();
+        }, "GameServer-shutdown"));
     }
 
     public static void main(String[] args) {
@@ -27,6 +50,11 @@ public class GameServer extends UnicastRemoteObject implements RemoteServerInter
             GameServer server = new GameServer();
             Naming.rebind("GameServer", server);
             System.out.println("Game server is running...");
+            if (ADMIN_CONSOLE) {
+                Thread console = new Thread(server::runConsole, "AdminConsole");
+                console.setDaemon(true);
+                console.start();
+            }
         } catch (RemoteException | MalformedURLException e) {
             e.printStackTrace();
         }
@@ -37,14 +65,16 @@ public class GameServer extends UnicastRemoteObject implements RemoteServerInter
      * @param username The username of the requester.
      * @param wins The number of wins of the requester.
      * @param avg The average time to win of the requester.
+     * @return False if the requester is already playing, a room is only left through LEAVEGAME.
      */
-    public void requestGame(String username, int wins, float avg){
-        if (!this.game.started && this.game.playerCount() < 4){
-            this.game.addPlayer(username, wins, avg);
-            this.queue.sendMessage("GAMEJOINED_" + username);
-        } else {
-            this.queue.sendMessage("GAMEFULL_" + username);
+    public boolean requestGame(String username, int wins, float avg){
+        this.db.heartbeat(username);
+        Game room = this.rooms.roomOf(username);
+        if (room != null && !room.isEnded()){
+            return false;
         }
+        this.matchmaker.enqueue(username, wins, avg);
+        return true;
     }
 
     @Override
@@ -57,6 +87,26 @@ public class GameServer extends UnicastRemoteObject implements RemoteServerInter
         return this.db.getAllUserData();
     }
 
+    @Override
+    public ArrayList<User> getTopUsers(int n) throws RemoteException {
+        return this.db.getTopUsers(n);
+    }
+
+    @Override
+    public ArrayList<User> getUserPage(int offset, int limit) throws RemoteException {
+        return this.db.getUserPage(offset, limit);
+    }
+
+    @Override
+    public ArrayList<User> getUsersAfterRank(int afterRank, int limit) throws RemoteException {
+        return this.db.getUsersAfterRank(afterRank, limit);
+    }
+
+    @Override
+    public ArrayList<User> getUsersAroundUser(String name, int radius) throws RemoteException {
+        return this.db.getUsersAroundUser(name, radius);
+    }
+
     @Override
     public boolean  authenticateUser(String username, String password) throws RemoteException {
         return this.db.authenticateUser(username, password);
@@ -78,10 +128,56 @@ public class GameServer extends UnicastRemoteObject implements RemoteServerInter
         this.db.logoutUser(username);
     }
 
+    @Override
+    public boolean heartbeat(String username) throws RemoteException {
+        return this.db.heartbeat(username);
+    }
+
     public void removePlayer(String username){
-        this.game.removePlayer(username);
+        if (!this.matchmaker.cancel(username)){
+            this.rooms.leave(username);
+        }
     }
-    public void renewGameObj(){
-        this.game = new Game(this);
+
+    /**
+     * Runs admin commands typed on the console of the server until standard input is closed.
+     * The commands are only available there, never to clients.
+     */
+    private void runConsole() {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] words = line.trim().split("\\s+");
+                switch (words[0]) {
+                    case "":
+                        break;
+                    case "dump":
+                        if (words.length != 2) {
+                            System.out.println("Usage: dump <" + DatabaseService.USER_INFO + "|" + SchemaMigrations.SCHEMA_VERSION + ">");
+                            break;
+                        }
+                        try {
+                            System.out.print(this.db.dumpTable(words[1]));
+                        } catch (IllegalArgumentException e) {
+                            System.out.println(e.getMessage());
+                        }
+                        break;
+                    case "stats":
+                        System.out.printf("pool: %s%ncache: %s%nrooms: %d, waiting: %d, stats queue: %d%nlanes: %s%n",
+                                this.db.getPoolStats(), this.db.getCacheStats(), this.rooms.roomCount(),
+                                this.matchmaker.waiting(), this.stats.queueDepth(), this.queue.laneStats());
+                        break;
+                    case "presence":
+                        List<String> online = this.db.getOnlineUsers();
+                        System.out.printf("%d online: %s%n", online.size(), String.join(", ", online));
+                        break;
+                    default:
+                        System.out.println("Commands: dump <table>, presence, stats");
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Admin console stopped: %s", e);
+        }
     }
 }
@@ -0,0 +1,226 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory stand-in for the JMS provider, with the same queue and topic semantics. The
+ * request queue, the shared reply queue, the inbox of every client and the events of
+ * every subscriber are lock-free ring buffers, and messages are handed over as opcode and
+ * fields without being encoded. Requests are delivered once, in order, by one receiver
+ * thread. A reply goes to the inbox given with the request, or to the shared reply queue.
+ * An event goes to every subscriber of its room's players and to subscribers without a
+ * selector, like a topic with message selectors. Clients use the same object to send
+ * requests and read replies and events, so the whole game runs without an application
+ * server, at memory speed.
+ */
+public class InProcessTransport implements MessageTransport {
+    private static final ServerLog LOG = ServerLog.get(InProcessTransport.class);
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = 50000L;
+
+    private final int capacity;
+    private final RingBuffer<Envelope> requests;
+    private final RingBuffer<Envelope> sharedReplies;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong nextCorrelationId = new AtomicLong();
+    private Thread receiver;
+    private volatile boolean running = true;
+
+    /**
+     * In-memory transport.
+     * @param capacity The capacity of each queue, rounded up to a power of two.
+     */
+    public InProcessTransport(int capacity) {
+        this.capacity = capacity;
+        this.requests = new RingBuffer<>(capacity);
+        this.sharedReplies = new RingBuffer<>(capacity);
+    }
+
+    @Override
+    public void start(RequestListener listener) {
+        this.receiver = new Thread(() -> {
+            int idle = 0;
+            while (this.running) {
+                Envelope request = this.requests.poll();
+                if (request == null) {
+                    idle = backoff(idle);
+                    continue;
+                }
+                idle = 0;
+                if (request.fields.length == 0) {
+                    LOG.error("Dropping %s message without fields", MessageCodec.nameOf(request.opcode));
+                    continue;
+                }
+                try {
+                    listener.onRequest(request.opcode, request.fields, new ReplyAddress(request.replyTo, request.correlationId));
+                } catch (RuntimeException e) {
+                    // One bad request must not stop the receiver
+                    LOG.error(e, "Failed to handle %s message", MessageCodec.nameOf(request.opcode));
+                }
+            }
+        }, "InProcessTransport-receiver");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+    }
+
+    @Override
+    public void reply(ReplyAddress to, int opcode, String... fields) {
+        @SuppressWarnings("unchecked")
+        RingBuffer<Envelope> inbox = to.destination != null ? (RingBuffer<Envelope>) to.destination : this.sharedReplies;
+        this.put(inbox, new Envelope(opcode, fields, to.correlationId, null, 0));
+    }
+
+    @Override
+    public void publish(int roomId, List<String> players, int opcode, String... fields) {
+        Envelope event = new Envelope(opcode, fields, null, null, roomId);
+        for (Subscription subscription : this.subscriptions) {
+            if (subscription.username == null || players.contains(subscription.username)) {
+                // A topic does not hold back the publisher for a slow subscriber
+                if (!subscription.events.offer(event)) {
+                    subscription.dropped.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        try {
+            if (this.receiver != null) {
+                this.receiver.join(2000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.requests.size() > 0) {
+            LOG.warn("Closed with %d requests not delivered", this.requests.size());
+        }
+    }
+
+    /**
+     * Sends a request to the server, as a client.
+     * @param inbox Where the reply goes, or null for the shared reply queue.
+     * @param opcode The opcode of the request, from MessageCodec.
+     * @param fields The fields of the request, starting with the username.
+     * @return The correlation id the reply will carry.
+     */
+    public String request(RingBuffer<Envelope> inbox, int opcode, String... fields) {
+        String correlationId = Long.toString(this.nextCorrelationId.incrementAndGet());
+        this.put(this.requests, new Envelope(opcode, fields, correlationId, inbox, 0));
+        return correlationId;
+    }
+
+    /**
+     * Creates an inbox for the replies of one client.
+     * @return The inbox.
+     */
+    public RingBuffer<Envelope> createInbox() {
+        return new RingBuffer<>(this.capacity);
+    }
+
+    /**
+     * Returns the queue replies go to when a request has no inbox.
+     * @return The shared reply queue.
+     */
+    public RingBuffer<Envelope> sharedReplies() {
+        return this.sharedReplies;
+    }
+
+    /**
+     * Subscribes to game events, as a client.
+     * @param username Only receive the events of the rooms of this player, or null for all events.
+     * @return The subscription.
+     */
+    public Subscription subscribe(String username) {
+        Subscription subscription = new Subscription(username, new RingBuffer<>(this.capacity));
+        this.subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Returns the number of requests waiting for the receiver.
+     * @return The queue depth.
+     */
+    public int pendingRequests() {
+        return this.requests.size();
+    }
+
+    // Queues are bounded, so a full queue makes the sender wait like a blocked JMS send
+    private void put(RingBuffer<Envelope> queue, Envelope envelope) {
+        int idle = 0;
+        while (!queue.offer(envelope)) {
+            if (!this.running) {
+                LOG.warn("Dropping %s, transport closed", MessageCodec.nameOf(envelope.opcode));
+                return;
+            }
+            idle = backoff(idle);
+        }
+    }
+
+    private static int backoff(int idle) {
+        if (idle < SPINS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return idle + 1;
+    }
+
+    /**
+     * A message on one of the queues.
+     */
+    public static final class Envelope {
+        public final int opcode;
+        public final String[] fields;
+        public final String correlationId;
+        public final int roomId;
+        private final RingBuffer<Envelope> replyTo;
+
+        Envelope(int opcode, String[] fields, String correlationId, RingBuffer<Envelope> replyTo, int roomId) {
+            this.opcode = opcode;
+            this.fields = fields;
+            this.correlationId = correlationId;
+            this.replyTo = replyTo;
+            this.roomId = roomId;
+        }
+    }
+
+    /**
+     * The game events of one subscriber.
+     */
+    public final class Subscription {
+        private final String username;
+        private final RingBuffer<Envelope> events;
+        private final AtomicLong dropped = new AtomicLong();
+
+        private Subscription(String username, RingBuffer<Envelope> events) {
+            this.username = username;
+            this.events = events;
+        }
+
+        /**
+         * Returns the next event.
+         * @return The event, or null if there is none.
+         */
+        public Envelope poll() {
+            return this.events.poll();
+        }
+
+        /**
+         * Returns the number of events dropped because the subscriber fell behind.
+         * @return The number of dropped events.
+         */
+        public long dropped() {
+            return this.dropped.get();
+        }
+
+        /**
+         * Stops the subscription.
+         */
+        public void close() {
+            InProcessTransport.this.subscriptions.remove(this);
+        }
+    }
+}
@@ -1,141 +1,124 @@
-import javax.jms.*;
-import javax.naming.Context;
-import javax.naming.InitialContext;
-import javax.naming.NamingException;
-import java.util.Objects;
-import java.util.Properties;
-
-
 /**
- * Queue client for JMS.
+ * Handles the requests clients send on the game queue and replies to them, on whichever
+ * MessageTransport the server runs on.
+ *
+ * By default requests are handled on the receiver thread of the transport, so the JMS
+ * transport sends the replies in the transaction of the request. With more than one lane
+ * (jms.queue.lanes) requests are handed to single-threaded lanes, picked by the room of
+ * the player or by the username if the player is not in a room. Requests of one game keep
+ * their order and different games are handled in parallel.
  */
-public class JMSQueueClient {
-    private GameServer server;
-    private String host;
-    private Context jndiContext;
-    private ConnectionFactory connectionFactory;
-    private Queue queue;
-    private Connection connection;
-    private Session session;
-    public boolean waitBreaker = false;
+public class JMSQueueClient implements MessageTransport.RequestListener {
+    private static final ServerLog LOG = ServerLog.get(JMSQueueClient.class);
+    // 1 handles every message on the receiver thread. More lanes handle games in parallel,
+    // but the lanes send replies outside the transaction of the request, and every batch
+    // commit waits until all lanes are idle, which stalls receiving for that long
+    private static final int LANES = Integer.getInteger("jms.queue.lanes", 1);
+    // Requests a lane holds before the receiver waits for it, so dups_ok mode has backpressure
+    private static final int LANE_CAPACITY = Integer.getInteger("jms.queue.laneCapacity", 256);
+    private static final long LANE_STATS_INTERVAL_MS = Long.getLong("jms.queue.laneStatsIntervalMs", 60000L);
+    private final GameServer server;
+    private final MessageTransport transport;
+    private PartitionedDispatcher lanes;
 
     /**
-     * Queue client for JMS.
+     * Handler of the game queue.
      * @param server The game server.
-     * @param host The host where the queue is hosted.
+     * @param transport The transport the requests arrive on.
      */
-    public JMSQueueClient(GameServer server, String host){
+    public JMSQueueClient(GameServer server, MessageTransport transport){
         this.server = server;
-        this.host = host;
-        this.createJNDIContext();
-        this.lookupConnectionFactory();
-        this.lookupQueue();
-        this.createConnection();
+        this.transport = transport;
     }
 
     /**
-     * Creates the JNDI context.
+     * Starts handling the requests from the queue.
      */
-    private void createJNDIContext() {
-        System.setProperty("org.omg.CORBA.ORBInitialHost", host);
-        System.setProperty("org.omg.CORBA.ORBInitialPort", "3700");
-        Properties env = new Properties();
-        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.cosnaming.CNCtxFactory");
-        env.put(Context.PROVIDER_URL, "iiop://" + host + ":3700");
-        try {
-            this.jndiContext = new InitialContext(env);
-        } catch (NamingException e) {
-            System.err.println("Could not create JNDI API context: " + e);
+    public void startListening() {
+        if (LANES > 1) {
+            this.lanes = new PartitionedDispatcher("JMSQueueClient-lane", LANES, LANE_CAPACITY);
+            if (LANE_STATS_INTERVAL_MS > 0) {
+                this.server.scheduler.scheduleRepeating(() -> LOG.info("Queue lanes: %s", this.laneStats()), LANE_STATS_INTERVAL_MS);
+            }
         }
+        this.transport.start(this);
     }
 
-    /**
-     * Looks up the connection factory.
-     */
-    private void lookupConnectionFactory() {
-        try {
-            this.connectionFactory = (ConnectionFactory) jndiContext.lookup("jms/JPoker24GameConnectionFactory");
-        } catch (NamingException e) {
-            System.err.println("JNDI API JMS connection factory lookup failed: " + e);
+    @Override
+    public void onRequest(int opcode, String[] fields, MessageTransport.ReplyAddress replyTo) {
+        if (this.lanes == null) {
+            this.process(opcode, fields, replyTo);
+            return;
         }
+        Game room = this.server.rooms.roomOf(fields[0]);
+        this.lanes.dispatch(room != null ? room.getId() : fields[0].hashCode(), () -> this.process(opcode, fields, replyTo));
     }
 
-    /**
-     * Looks up the queue.
-     */
-    private void lookupQueue() {
+    @Override
+    public void awaitProcessed() {
+        if (this.lanes == null) {
+            return;
+        }
         try {
-            this.queue = (Queue) jndiContext.lookup("jms/JPoker24GameQueue");
-        } catch (NamingException e) {
-            System.err.println("JNDI API JMS queue lookup failed: " + e);
+            this.lanes.awaitIdle();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * Creates a new session.
+     * Handles a request from a client.
+     * @param opcode The opcode of the request.
+     * @param fields The fields of the request, starting with the username.
+     * @param replyTo Where to send the reply.
      */
-    private void createConnection() {
+    private void process(int opcode, String[] fields, MessageTransport.ReplyAddress replyTo) {
         try {
-            this.connection = connectionFactory.createConnection();
-            connection.start();
-            this.session = connection.createSession(true, Session.CLIENT_ACKNOWLEDGE);
-        } catch (JMSException e) {
-            System.err.println("Failed to create connection to JMS provider: " + e);
+            switch (opcode) {
+                case MessageCodec.REQUESTGAME:
+                    boolean joined = this.server.requestGame(fields[0], Integer.parseInt(fields[1]), Float.parseFloat(fields[2]));
+                    this.transport.reply(replyTo, joined ? MessageCodec.GAMEJOINED : MessageCodec.GAMEFULL, fields[0]);
+                    break;
+                case MessageCodec.LEAVEGAME:
+                    this.server.removePlayer(fields[0]);
+                    this.transport.reply(replyTo, MessageCodec.GAMELEFT, fields[0]);
+                    break;
+                case MessageCodec.SUBMITANSWER:
+                    String username = fields[0];
+                    String answer = fields[1];
+                    Game game = this.server.rooms.roomOf(username);
+                    String result = game == null ? "You are not in a game!" : game.checkAns(answer);
+                    if ("Right Answer".equals(result)){
+                        this.transport.reply(replyTo, MessageCodec.RIGHTANSWER, username);
+                        game.endGame(username, answer, Float.parseFloat(fields[2]));
+                    } else {
+                        this.transport.reply(replyTo, MessageCodec.WRONGANSWER, username, result);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (RuntimeException e) {
+            // A malformed message would fail again on redelivery, so it is dropped, not rolled back
+            LOG.error(e, "Dropping malformed %s message", MessageCodec.nameOf(opcode));
         }
     }
 
     /**
-     * Sends a message to the queue.
-     * @param messageText The message to be sent.
+     * Returns the queue depth and latency of each lane.
+     * @return The lane statistics.
      */
-    public void sendMessage(String messageText) {
-        try {
-            MessageProducer producer = session.createProducer(queue);
-            TextMessage message = session.createTextMessage(messageText);
-            producer.send(message);
-            System.out.println("Message sent to the queue: " + messageText);
-            producer.close();
-        } catch (JMSException e) {
-            System.err.println("Failed to send message to queue: " + e);
-        }
+    public String laneStats() {
+        return this.lanes == null ? "single receiver thread" : this.lanes.toString();
     }
 
     /**
-     * Starts checking the queue for incoming messages.
+     * Stops the lanes, after the transport stopped delivering requests.
      */
-    public void startListening() {
-        try {
-            MessageConsumer consumer = session.createConsumer(queue);
-            consumer.setMessageListener(message -> {
-                try {
-                    if (message instanceof TextMessage) {
-                        TextMessage textMessage = (TextMessage) message;
-                        String[] msg = textMessage.getText().split("_");
-                        if (Objects.equals(msg[0], "REQUESTGAME")) {
-                            message.acknowledge();
-                            this.server.requestGame(msg[1],Integer.parseInt(msg[2]), Float.parseFloat(msg[3]));
-                        } else if (Objects.equals(msg[0], "LEAVEGAME")){
-                            message.acknowledge();
-                            this.server.removePlayer(msg[1]);
-                            this.sendMessage("GAMELEFT_" + msg[1]);
-                        } else if (Objects.equals(msg[0], "SUBMITANSWER")){
-                            message.acknowledge();
-                            String result = this.server.game.checkAns(msg[1]);
-                            if (Objects.equals(result, "Right Answer")){
-                                this.sendMessage("RIGHTANSWER_" + msg[1]);
-                                this.server.game.endGame(msg[1], msg[2], Float.parseFloat(msg[3]));
-                            } else {
-                                this.sendMessage("WRONGANSWER_" + msg[1] + "_" + result);
-                            }
-                        }
-                    }
-                } catch (JMSException e) {
-                    System.err.println("Failed to process message from queue: " + e);
-                }
-            });
-            connection.start();
-        } catch (JMSException e) {
-            System.err.println("Failed to start listening to queue: " + e);
+    public void close() {
+        if (this.lanes != null) {
+            this.lanes.shutdown(2000);
+            LOG.info("Queue lanes at shutdown: %s", this.laneStats());
         }
     }
 }
@@ -0,0 +1,120 @@
+import javax.jms.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Long-lived sender for a default destination, or for the destination given with each
+ * message, such as the JMSReplyTo of a request. JMS sessions must not be shared between
+ * threads, so every thread that sends gets its own session and unbound producer the first
+ * time it sends, and keeps them. The connection is shared, since connections are thread safe.
+ * A channel that fails to send is closed and replaced on the next send.
+ */
+public class JMSSender implements AutoCloseable {
+    private static final ServerLog LOG = ServerLog.get(JMSSender.class);
+    private final Connection connection;
+    private final Destination destination;
+    private final ThreadLocal<Channel> channels = new ThreadLocal<>();
+    private final Set<Channel> open = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Long-lived sender for one destination.
+     * @param connection The connection the sessions are created on.
+     * @param destination The queue or topic to send to by default.
+     */
+    public JMSSender(Connection connection, Destination destination) {
+        this.connection = connection;
+        this.destination = destination;
+    }
+
+    /**
+     * Sends a message from the calling thread, encoded by MessageCodec.
+     * @param opcode The opcode of the message.
+     * @param fields The fields of the message.
+     * @throws JMSException If the message could not be sent.
+     */
+    public void send(int opcode, String... fields) throws JMSException {
+        this.send(null, null, opcode, fields);
+    }
+
+    /**
+     * Sends a message from the calling thread, encoded by MessageCodec, with properties
+     * set by a decorator, such as the properties consumers select on.
+     * @param to The destination, or null for the default destination.
+     * @param decorator Sets properties on the message, may be null.
+     * @param opcode The opcode of the message.
+     * @param fields The fields of the message.
+     * @throws JMSException If the message could not be sent.
+     */
+    public void send(Destination to, Decorator decorator, int opcode, String... fields) throws JMSException {
+        Channel channel = this.channel();
+        try {
+            Message message = MessageCodec.encode(channel.session, opcode, fields);
+            if (decorator != null) {
+                decorator.decorate(message);
+            }
+            channel.producer.send(to != null ? to : this.destination, message);
+        } catch (JMSException e) {
+            this.discard(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of open sessions, one per thread that has sent.
+     * @return The number of sessions.
+     */
+    public int openSessions() {
+        return this.open.size();
+    }
+
+    /**
+     * Closes every session.
+     */
+    @Override
+    public void close() {
+        for (Channel channel : this.open) {
+            this.discard(channel);
+        }
+    }
+
+    private Channel channel() throws JMSException {
+        Channel channel = this.channels.get();
+        if (channel == null) {
+            Session session = this.connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            channel = new Channel(session, session.createProducer(null));
+            this.channels.set(channel);
+            this.open.add(channel);
+            LOG.debug("Opened a sending session for %s, %d open", Thread.currentThread().getName(), this.open.size());
+        }
+        return channel;
+    }
+
+    private void discard(Channel channel) {
+        this.open.remove(channel);
+        if (this.channels.get() == channel) {
+            this.channels.remove();
+        }
+        try {
+            channel.session.close();
+        } catch (JMSException e) {
+            LOG.warn("Failed to close sending session: %s", e);
+        }
+    }
+
+    /**
+     * Sets properties on a message before it is sent.
+     */
+    public interface Decorator {
+        void decorate(Message message) throws JMSException;
+    }
+
+    private static class Channel {
+        private final Session session;
+        private final MessageProducer producer;
+
+        Channel(Session session, MessageProducer producer) {
+            this.session = session;
+            this.producer = producer;
+        }
+    }
+}
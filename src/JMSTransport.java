@@ -0,0 +1,378 @@
+import javax.jms.*;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Transport on the JMS provider of the application server, looked up through JNDI.
+ * Requests are read from the game queue by a receiver thread. In transacted mode the
+ * received messages and the replies sent on the receiver thread are committed together
+ * every jms.queue.commitBatch messages, or jms.queue.commitIntervalMs after the first
+ * uncommitted message, whichever comes first, once the listener has handled them.
+ *
+ * The handlers are not idempotent: a SUBMITANSWER handled again after its game ended is
+ * answered "You are not in a game!", and a REQUESTGAME handled again queues the player
+ * for another game. So the transport remembers the JMSMessageIDs of the last
+ * jms.queue.dedupSize requests, and a redelivered request it already handled is skipped.
+ * The correlation id is chosen by the client and only used to address the reply, so a
+ * client reusing one cannot make the server skip its requests.
+ * If its reply was sent in the transaction that rolled back, that reply is sent again.
+ * The memory does not survive a restart, so a batch redelivered after a crash is handled
+ * again and can get duplicate or outdated replies.
+ *
+ * Replies go to the JMSReplyTo of the request, or to the game queue marked as replies,
+ * and events go to the game topic tagged with their room and players.
+ */
+public class JMSTransport implements MessageTransport {
+    private static final ServerLog LOG = ServerLog.get(JMSTransport.class);
+    // "transacted" commits in batches, "dups_ok" lets the provider acknowledge lazily
+    private static final boolean TRANSACTED = !"dups_ok".equalsIgnoreCase(System.getProperty("jms.queue.ackMode", "transacted"));
+    private static final int COMMIT_BATCH = Integer.getInteger("jms.queue.commitBatch", 32);
+    private static final long COMMIT_INTERVAL_MS = Long.getLong("jms.queue.commitIntervalMs", 50L);
+    private static final int DEDUP_SIZE = Integer.getInteger("jms.queue.dedupSize", 4096);
+    // Replies left on the shared queue are marked, so the server does not consume them
+    public static final String KIND = "kind";
+    public static final String REPLY = "reply";
+    private static final String REQUEST_SELECTOR = KIND + " IS NULL OR " + KIND + " <> '" + REPLY + "'";
+    // Topic events carry their room and players, so clients can select their own
+    public static final String ROOM_ID = "roomId";
+    public static final String PLAYER = "player";
+
+    private final String host;
+    private Context jndiContext;
+    private ConnectionFactory connectionFactory;
+    private Queue queue;
+    private Topic topic;
+    private Connection connection;
+    private Session session;
+    private JMSSender queueSender;
+    private JMSSender topicSender;
+    private MessageProducer replyProducer;
+    private Thread receiver;
+    private volatile boolean running = false;
+    private final MessageCodec.Frame frame = new MessageCodec.Frame();
+    private RequestListener listener;
+    // Message ids of the latest requests handled, with their reply once it is sent
+    private final Map<String, SentReply> handled = new LinkedHashMap<String, SentReply>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SentReply> eldest) {
+            return this.size() > DEDUP_SIZE;
+        }
+    };
+
+    /**
+     * Transport on the JMS provider.
+     * @param host The host where the queue and topic are hosted.
+     */
+    public JMSTransport(String host) {
+        this.host = host;
+        this.createJNDIContext();
+        this.lookupConnectionFactory();
+        this.lookupDestinations();
+        this.createConnection();
+    }
+
+    /**
+     * Returns the message selector a client subscribes to the topic with to receive only
+     * the events of the room it plays in.
+     * @param username The username of the client.
+     * @return The selector.
+     */
+    public static String selectorFor(String username) {
+        String quoted = "'" + username.replace("'", "''") + "'";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < GameRoomManager.MAX_PLAYERS; i++) {
+            if (i > 0) {
+                sb.append(" OR ");
+            }
+            sb.append(PLAYER).append(i).append(" = ").append(quoted);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates the JNDI context.
+     */
+    private void createJNDIContext() {
+        System.setProperty("org.omg.CORBA.ORBInitialHost", host);
+        System.setProperty("org.omg.CORBA.ORBInitialPort", "3700");
+        Properties env = new Properties();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.cosnaming.CNCtxFactory");
+        env.put(Context.PROVIDER_URL, "iiop://" + host + ":3700");
+        try {
+            this.jndiContext = new InitialContext(env);
+        } catch (NamingException e) {
+            LOG.error("Could not create JNDI API context: %s", e);
+        }
+    }
+
+    /**
+     * Looks up the connection factory.
+     */
+    private void lookupConnectionFactory() {
+        try {
+            this.connectionFactory = (ConnectionFactory) jndiContext.lookup("jms/JPoker24GameConnectionFactory");
+        } catch (NamingException e) {
+            LOG.error("JNDI API JMS connection factory lookup failed: %s", e);
+        }
+    }
+
+    /**
+     * Looks up the queue and the topic.
+     */
+    private void lookupDestinations() {
+        try {
+            this.queue = (Queue) jndiContext.lookup("jms/JPoker24GameQueue");
+            this.topic = (Topic) jndiContext.lookup("jms/JPoker24GameTopic");
+        } catch (NamingException e) {
+            LOG.error("JNDI API JMS destination lookup failed: %s", e);
+        }
+    }
+
+    /**
+     * Creates the connection, the receiving session and the senders.
+     */
+    private void createConnection() {
+        try {
+            this.connection = connectionFactory.createConnection();
+            connection.start();
+            this.session = TRANSACTED
+                    ? connection.createSession(true, Session.SESSION_TRANSACTED)
+                    : connection.createSession(false, Session.DUPS_OK_ACKNOWLEDGE);
+            this.queueSender = new JMSSender(this.connection, this.queue);
+            this.topicSender = new JMSSender(this.connection, this.topic);
+        } catch (JMSException e) {
+            LOG.error("Failed to create connection to JMS provider: %s", e);
+        }
+    }
+
+    @Override
+    public void start(RequestListener listener) {
+        this.listener = listener;
+        try {
+            MessageConsumer consumer = session.createConsumer(queue, REQUEST_SELECTOR);
+            if (TRANSACTED) {
+                this.replyProducer = session.createProducer(null);
+            }
+            this.running = true;
+            this.receiver = new Thread(() -> this.receiveLoop(consumer), "JMSTransport-receiver");
+            this.receiver.setDaemon(true);
+            this.receiver.start();
+            connection.start();
+        } catch (JMSException e) {
+            LOG.error("Failed to start listening to queue: %s", e);
+        }
+    }
+
+    private void receiveLoop(MessageConsumer consumer) {
+        int uncommitted = 0;
+        long deadline = 0;
+        while (this.running) {
+            try {
+                Message message;
+                if (!TRANSACTED) {
+                    message = consumer.receive(1000);
+                } else if (uncommitted == 0) {
+                    message = consumer.receive(1000);
+                } else {
+                    long wait = deadline - System.currentTimeMillis();
+                    message = wait > 0 ? consumer.receive(wait) : null;
+                }
+                if (message != null) {
+                    this.deliver(message);
+                    if (TRANSACTED && uncommitted++ == 0) {
+                        deadline = System.currentTimeMillis() + COMMIT_INTERVAL_MS;
+                    }
+                }
+                if (TRANSACTED && uncommitted > 0 && (uncommitted >= COMMIT_BATCH || System.currentTimeMillis() >= deadline)) {
+                    // Messages must not be committed before the listener has handled them
+                    this.listener.awaitProcessed();
+                    this.session.commit();
+                    uncommitted = 0;
+                }
+            } catch (JMSException e) {
+                if (!this.running) {
+                    break;
+                }
+                LOG.error("Failed to receive from queue, rolling back %d messages: %s", uncommitted, e);
+                uncommitted = 0;
+                try {
+                    if (TRANSACTED) {
+                        this.session.rollback();
+                    }
+                } catch (JMSException re) {
+                    LOG.error("Failed to roll back queue session: %s", re);
+                }
+            }
+        }
+        try {
+            if (TRANSACTED && uncommitted > 0) {
+                this.listener.awaitProcessed();
+                this.session.commit();
+            }
+        } catch (JMSException e) {
+            LOG.error("Failed to commit queue session on shutdown: %s", e);
+        }
+    }
+
+    /**
+     * Decodes one message from the queue and hands it to the listener.
+     * @param message The message.
+     */
+    private void deliver(Message message) throws JMSException {
+        String messageId = message.getJMSMessageID();
+        String correlationId = message.getJMSCorrelationID() != null ? message.getJMSCorrelationID() : messageId;
+        ReplyAddress replyTo = new ReplyAddress(message.getJMSReplyTo(), correlationId, messageId);
+        if (message.getJMSRedelivered() && this.replayHandled(replyTo)) {
+            return;
+        }
+        MessageCodec.Frame msg = MessageCodec.decode(message, this.frame);
+        int opcode = msg.opcode();
+        if (opcode != MessageCodec.REQUESTGAME && opcode != MessageCodec.LEAVEGAME && opcode != MessageCodec.SUBMITANSWER) {
+            // Replies and unknown messages are not for the server
+            return;
+        }
+        if (msg.fieldCount() == 0) {
+            LOG.error("Dropping %s message without fields", MessageCodec.nameOf(opcode));
+            return;
+        }
+        // The frame is reused by the next message, so the listener gets its own copy
+        String[] fields = new String[msg.fieldCount()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = msg.field(i);
+        }
+        synchronized (this.handled) {
+            this.handled.put(messageId, SentReply.NONE);
+        }
+        this.listener.onRequest(opcode, fields, replyTo);
+    }
+
+    /**
+     * Skips a redelivered request that was already handled, sending its reply again if the
+     * reply was rolled back along with the request.
+     * @param replyTo The reply address of the request, with its message id.
+     * @return True if the request was already handled.
+     */
+    private boolean replayHandled(ReplyAddress replyTo) {
+        SentReply sent;
+        synchronized (this.handled) {
+            sent = this.handled.get(replyTo.requestId);
+        }
+        if (sent == null) {
+            return false;
+        }
+        if (sent.inTransaction) {
+            this.reply(replyTo, sent.opcode, sent.fields);
+        }
+        LOG.info("Skipped redelivered request %s, it was already handled", replyTo.requestId);
+        return true;
+    }
+
+    /**
+     * Replies to a request. The reply goes to the JMSReplyTo of the request, or to the
+     * shared queue marked as a reply for clients that do not set one, and carries the
+     * correlation id of the request. Replies sent on the receiver thread go out in the
+     * transaction of the request, other threads use their own sending session.
+     */
+    @Override
+    public void reply(ReplyAddress to, int opcode, String... fields) {
+        Destination destination = (Destination) to.destination;
+        JMSSender.Decorator decorator = message -> {
+            message.setStringProperty(KIND, REPLY);
+            message.setJMSCorrelationID(to.correlationId);
+        };
+        try {
+            boolean inTransaction = TRANSACTED && Thread.currentThread() == this.receiver;
+            if (inTransaction) {
+                Message message = MessageCodec.encode(this.session, opcode, fields);
+                decorator.decorate(message);
+                this.replyProducer.send(destination != null ? destination : this.queue, message);
+            } else {
+                this.queueSender.send(destination, decorator, opcode, fields);
+            }
+            synchronized (this.handled) {
+                if (to.requestId != null && this.handled.containsKey(to.requestId)) {
+                    this.handled.put(to.requestId, new SentReply(opcode, fields, inTransaction));
+                }
+            }
+            if (LOG.isEnabled(ServerLog.Level.DEBUG)) {
+                LOG.debug("Reply sent to %s: %s %s", destination != null ? destination : "the queue",
+                        MessageCodec.nameOf(opcode), String.join(" ", fields));
+            }
+        } catch (JMSException e) {
+            LOG.error("Failed to send message to queue: %s", e);
+        }
+    }
+
+    /**
+     * Publishes an event to the topic, with the id of the room in the roomId property and
+     * the usernames of its players in player0 to player3. Clients subscribed with the
+     * selector from selectorFor only receive the events of their own room, clients
+     * without a selector receive every event.
+     */
+    @Override
+    public void publish(int roomId, List<String> players, int opcode, String... fields) {
+        try {
+            this.topicSender.send(null, message -> {
+                message.setIntProperty(ROOM_ID, roomId);
+                for (int i = 0; i < players.size(); i++) {
+                    message.setStringProperty(PLAYER + i, players.get(i));
+                }
+            }, opcode, fields);
+            if (LOG.isEnabled(ServerLog.Level.DEBUG)) {
+                LOG.debug("Message published to topic: %s %s", MessageCodec.nameOf(opcode), String.join(" ", fields));
+            }
+        } catch (JMSException e) {
+            LOG.error("Failed to publish message: %s", e);
+        }
+    }
+
+    /**
+     * Stops the receiver, commits what it handled, and closes the sessions and the connection.
+     */
+    @Override
+    public void close() {
+        this.running = false;
+        try {
+            if (this.receiver != null) {
+                this.receiver.join(2000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (this.queueSender != null) {
+                this.queueSender.close();
+            }
+            if (this.topicSender != null) {
+                this.topicSender.close();
+            }
+            if (this.connection != null) {
+                this.connection.close();
+            }
+        } catch (JMSException e) {
+            LOG.error("Failed to close connection to JMS provider: %s", e);
+        }
+    }
+
+    /**
+     * The reply sent to a request, kept to answer a redelivery of the request.
+     */
+    private static final class SentReply {
+        private static final SentReply NONE = new SentReply(0, new String[0], false);
+        private final int opcode;
+        private final String[] fields;
+        // Sent in the transaction of the request, so it is rolled back with it
+        private final boolean inTransaction;
+
+        SentReply(int opcode, String[] fields, boolean inTransaction) {
+            this.opcode = opcode;
+            this.fields = fields;
+            this.inTransaction = inTransaction;
+        }
+    }
+}
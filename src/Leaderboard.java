@@ -0,0 +1,302 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * In-memory ranking of all users, ordered by wins DESC, games ASC, avg ASC, name ASC.
+ * Backed by a treap whose nodes know the size of their subtree, so the rank of a user
+ * and the user at a given rank are both found in O(log n). The leaderboard remembers
+ * which part of the order moved since the last call to drainRankChanges, so only the
+ * rows whose rank really changed need to be written back to the database.
+ */
+public class Leaderboard {
+    // Never a real rank, so the user is written on the next drain
+    private static final int UNKNOWN_RANK = -1;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Random random = new Random();
+    private Node root = null;
+    // Range of 0-based positions that may hold a rank different from the persisted one
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private int dirtyTo = -1;
+
+    /**
+     * Adds a user read from the database, along with the rank stored for them.
+     * @param name The username.
+     * @param games The number of games played.
+     * @param wins The number of games won.
+     * @param avg The average time to win.
+     * @param persistedRank The rank currently stored in the database.
+     */
+    public synchronized void load(String name, int games, int wins, float avg, int persistedRank) {
+        Entry entry = new Entry(name, games, wins, avg);
+        entry.persistedRank = persistedRank;
+        this.replace(entry);
+    }
+
+    /**
+     * Adds a user or replaces their statistics.
+     * @param name The username.
+     * @param games The number of games played.
+     * @param wins The number of games won.
+     * @param avg The average time to win.
+     */
+    public synchronized void put(String name, int games, int wins, float avg) {
+        this.replace(new Entry(name, games, wins, avg));
+    }
+
+    /**
+     * Records the outcome of games for a user, with the same arithmetic as the database update.
+     * @param name The username.
+     * @param games The number of games played since the last update.
+     * @param wins The number of those games that were won.
+     * @param winTime The summed time of the won games.
+     * @return False if the user is unknown.
+     */
+    public synchronized boolean record(String name, int games, int wins, float winTime) {
+        Entry old = this.entries.get(name);
+        if (old == null) {
+            return false;
+        }
+        float avg = old.avg;
+        if (old.wins + wins != 0) {
+            avg = Math.round((old.avg * old.wins + winTime) / (old.wins + wins) * 100) / 100.0F;
+        }
+        this.replace(new Entry(name, old.games + games, old.wins + wins, avg));
+        return true;
+    }
+
+    /**
+     * Returns the rank of a user, 1 being the best.
+     * @param name The username.
+     * @return The rank, or 0 if the user is unknown.
+     */
+    public synchronized int rankOf(String name) {
+        Entry entry = this.entries.get(name);
+        return entry == null ? 0 : this.indexOf(entry) + 1;
+    }
+
+    /**
+     * Returns the number of ranked users.
+     * @return The number of users.
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the users whose rank differs from the one last persisted, and marks them as persisted.
+     * Only the part of the order that moved since the previous call is visited.
+     * @return The changed users mapped to their new rank.
+     */
+    public synchronized Map<String, Integer> drainRankChanges() {
+        Map<String, Integer> changed = new HashMap<>();
+        int to = Math.min(this.dirtyTo, this.entries.size() - 1);
+        if (this.dirtyFrom <= to) {
+            List<Entry> range = new ArrayList<>(to - this.dirtyFrom + 1);
+            this.collect(this.root, 0, this.dirtyFrom, to, range);
+            int rank = this.dirtyFrom + 1;
+            for (Entry entry : range) {
+                if (entry.persistedRank != rank) {
+                    entry.persistedRank = rank;
+                    changed.put(entry.name, rank);
+                }
+                rank++;
+            }
+        }
+        this.dirtyFrom = Integer.MAX_VALUE;
+        this.dirtyTo = -1;
+        return changed;
+    }
+
+    /**
+     * Puts back rank changes that could not be written, so the next drainRankChanges
+     * returns those users again with their rank at that time.
+     * @param names The usernames returned by the drainRankChanges whose write failed.
+     */
+    public synchronized void restoreRankChanges(Collection<String> names) {
+        for (String name : names) {
+            Entry entry = this.entries.get(name);
+            if (entry != null) {
+                entry.persistedRank = UNKNOWN_RANK;
+                this.markDirty(this.indexOf(entry));
+            }
+        }
+    }
+
+    private void replace(Entry entry) {
+        Entry old = this.entries.put(entry.name, entry);
+        int from;
+        if (old != null) {
+            from = this.indexOf(old);
+            this.root = this.delete(this.root, old);
+            if (entry.persistedRank == 0) {
+                entry.persistedRank = old.persistedRank;
+            }
+        } else {
+            // Everyone after the new entry moves down by one
+            from = Integer.MAX_VALUE;
+            this.markDirty(this.entries.size() - 1);
+        }
+        this.root = this.insert(this.root, entry);
+        int to = this.indexOf(entry);
+        this.markDirty(Math.min(from, to));
+        this.markDirty(from == Integer.MAX_VALUE ? to : Math.max(from, to));
+    }
+
+    private void markDirty(int index) {
+        this.dirtyFrom = Math.min(this.dirtyFrom, index);
+        this.dirtyTo = Math.max(this.dirtyTo, index);
+    }
+
+    private int indexOf(Entry entry) {
+        int index = 0;
+        Node n = this.root;
+        while (n != null) {
+            int c = entry.compareTo(n.entry);
+            if (c < 0) {
+                n = n.left;
+            } else {
+                index += size(n.left);
+                if (c == 0) {
+                    return index;
+                }
+                index++;
+                n = n.right;
+            }
+        }
+        throw new IllegalStateException("Entry not in leaderboard: " + entry.name);
+    }
+
+    private void collect(Node n, int offset, int from, int to, List<Entry> out) {
+        if (n == null) {
+            return;
+        }
+        int index = offset + size(n.left);
+        if (from < index) {
+            this.collect(n.left, offset, from, to, out);
+        }
+        if (from <= index && index <= to) {
+            out.add(n.entry);
+        }
+        if (index < to) {
+            this.collect(n.right, index + 1, from, to, out);
+        }
+    }
+
+    private Node insert(Node n, Entry entry) {
+        if (n == null) {
+            return new Node(entry, this.random.nextInt());
+        }
+        if (entry.compareTo(n.entry) < 0) {
+            n.left = this.insert(n.left, entry);
+            if (n.left.priority > n.priority) {
+                n = rotateRight(n);
+            }
+        } else {
+            n.right = this.insert(n.right, entry);
+            if (n.right.priority > n.priority) {
+                n = rotateLeft(n);
+            }
+        }
+        n.update();
+        return n;
+    }
+
+    private Node delete(Node n, Entry entry) {
+        if (n == null) {
+            return null;
+        }
+        int c = entry.compareTo(n.entry);
+        if (c < 0) {
+            n.left = this.delete(n.left, entry);
+        } else if (c > 0) {
+            n.right = this.delete(n.right, entry);
+        } else if (n.left == null) {
+            return n.right;
+        } else if (n.right == null) {
+            return n.left;
+        } else if (n.left.priority > n.right.priority) {
+            n = rotateRight(n);
+            n.right = this.delete(n.right, entry);
+        } else {
+            n = rotateLeft(n);
+            n.left = this.delete(n.left, entry);
+        }
+        n.update();
+        return n;
+    }
+
+    private static Node rotateRight(Node n) {
+        Node l = n.left;
+        n.left = l.right;
+        l.right = n;
+        n.update();
+        l.update();
+        return l;
+    }
+
+    private static Node rotateLeft(Node n) {
+        Node r = n.right;
+        n.right = r.left;
+        r.left = n;
+        n.update();
+        r.update();
+        return r;
+    }
+
+    private static int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    /**
+     * A user's statistics as ordered on the leaderboard.
+     */
+    private static class Entry implements Comparable<Entry> {
+        private final String name;
+        private final int games;
+        private final int wins;
+        private final float avg;
+        private int persistedRank = 0;
+
+        Entry(String name, int games, int wins, float avg) {
+            this.name = name;
+            this.games = games;
+            this.wins = wins;
+            this.avg = avg;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            if (this.wins != o.wins) {
+                return Integer.compare(o.wins, this.wins);
+            }
+            if (this.games != o.games) {
+                return Integer.compare(this.games, o.games);
+            }
+            if (this.avg != o.avg) {
+                return Float.compare(this.avg, o.avg);
+            }
+            return this.name.compareTo(o.name);
+        }
+    }
+
+    private static class Node {
+        private final Entry entry;
+        private final int priority;
+        private Node left;
+        private Node right;
+        private int size = 1;
+
+        Node(Entry entry, int priority) {
+            this.entry = entry;
+            this.priority = priority;
+        }
+
+        private void update() {
+            this.size = 1 + Leaderboard.size(this.left) + Leaderboard.size(this.right);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Skill based matchmaking. Waiting players are kept in a tree ordered by skill, so the
+ * closest opponents of a player are its neighbours in the tree and are found in
+ * O(log n). A room of four is formed as soon as four neighbours fit within the skill
+ * tolerance. Players that waited longer than the start delay may also be placed into
+ * rooms of two or three, and the tolerance grows with the time a player has waited,
+ * up to the point where anyone is an acceptable opponent.
+ */
+public class Matchmaker {
+    private static final ServerLog LOG = ServerLog.get(Matchmaker.class);
+    public static final int MIN_PLAYERS = 2;
+    private static final long START_DELAY_MS = Long.getLong("game.startDelayMs", 10000L);
+    private static final double BASE_TOLERANCE = Double.parseDouble(System.getProperty("matchmaking.baseTolerance", "2"));
+    private static final double TOLERANCE_GROWTH_PER_SEC = Double.parseDouble(System.getProperty("matchmaking.toleranceGrowthPerSec", "0.2"));
+    private static final long MAX_WAIT_MS = Long.getLong("matchmaking.maxWaitMs", 30000L);
+    private static final long TICK_MS = Long.getLong("matchmaking.tickMs", 1000L);
+
+    private final GameRoomManager rooms;
+    private final TreeSet<Ticket> bySkill = new TreeSet<>();
+    private final Map<String, Ticket> byName = new HashMap<>();
+    private final ArrayDeque<Ticket> byArrival = new ArrayDeque<>();
+    private long sequence = 0;
+
+    /**
+     * Skill based matchmaking.
+     * @param rooms The rooms matched players are placed into.
+     * @param scheduler The scheduler running the matchmaking ticks.
+     */
+    public Matchmaker(GameRoomManager rooms, GameScheduler scheduler) {
+        this.rooms = rooms;
+        scheduler.scheduleRepeating(this::tick, TICK_MS);
+    }
+
+    /**
+     * The skill of a player: the number of wins, with faster average times as a tie breaker.
+     * @param wins The number of wins the player has.
+     * @param avg The average time to win for the player.
+     * @return The skill.
+     */
+    public static double skill(int wins, float avg) {
+        return wins - Math.min(Math.max(avg, 0F), 60F) / 60.0;
+    }
+
+    /**
+     * Puts a player in the queue, forming a room right away if three close opponents are waiting.
+     * @param username The username of the player.
+     * @param wins The number of wins the player has.
+     * @param avg The average time to win for the player.
+     */
+    public void enqueue(String username, int wins, float avg) {
+        Game room = null;
+        synchronized (this) {
+            if (this.byName.containsKey(username)) {
+                return;
+            }
+            Ticket ticket = new Ticket(username, wins, avg, System.currentTimeMillis(), this.sequence++);
+            this.bySkill.add(ticket);
+            this.byName.put(username, ticket);
+            this.byArrival.add(ticket);
+            List<Ticket> group = this.bestGroup(ticket, GameRoomManager.MAX_PLAYERS, BASE_TOLERANCE);
+            if (group != null) {
+                room = this.match(group);
+            }
+        }
+        // Started outside the lock, so publishing STARTGAME never holds up the queue
+        if (room != null) {
+            this.start(room);
+        }
+    }
+
+    /**
+     * Removes a player from the queue.
+     * @param username The username of the player.
+     * @return True if the player was waiting.
+     */
+    public synchronized boolean cancel(String username) {
+        Ticket ticket = this.byName.remove(username);
+        if (ticket == null) {
+            return false;
+        }
+        this.bySkill.remove(ticket);
+        ticket.removed = true;
+        return true;
+    }
+
+    /**
+     * Returns the number of waiting players.
+     * @return The queue size.
+     */
+    public synchronized int waiting() {
+        return this.byName.size();
+    }
+
+    /**
+     * Matches the players that have waited longer than the start delay, oldest first, with
+     * their relaxed tolerance. Only players past the delay are visited.
+     */
+    void tick() {
+        List<Game> opened = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<Ticket> it = this.byArrival.iterator();
+            while (it.hasNext()) {
+                Ticket ticket = it.next();
+                if (ticket.removed) {
+                    it.remove();
+                    continue;
+                }
+                long waited = now - ticket.enqueued;
+                if (waited < START_DELAY_MS) {
+                    break;
+                }
+                List<Ticket> group = this.bestGroup(ticket, MIN_PLAYERS, tolerance(waited));
+                if (group != null) {
+                    // Removal flags the tickets, the iterator skips or drops them
+                    Game room = this.match(group);
+                    if (room != null) {
+                        opened.add(room);
+                    }
+                }
+            }
+        }
+        for (Game room : opened) {
+            this.start(room);
+        }
+    }
+
+    /**
+     * Starts a room opened by match. Players may leave between opening and starting the
+     * room, and a room left with too few players is disbanded and the rest are queued again.
+     */
+    private void start(Game room) {
+        if (room.start()) {
+            return;
+        }
+        for (User player : room.disband()) {
+            this.enqueue(player.getName(), player.getGamesWon(), player.getAvgTimeToGame());
+        }
+    }
+
+    private static double tolerance(long waited) {
+        if (waited >= MAX_WAIT_MS) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return BASE_TOLERANCE + TOLERANCE_GROWTH_PER_SEC * waited / 1000.0;
+    }
+
+    /**
+     * Finds the largest group of consecutive players by skill that contains the ticket and
+     * fits within the tolerance, preferring the smallest skill spread among groups of that size.
+     */
+    private List<Ticket> bestGroup(Ticket ticket, int minSize, double tolerance) {
+        int max = GameRoomManager.MAX_PLAYERS;
+        List<Ticket> below = new ArrayList<>(max - 1);
+        List<Ticket> above = new ArrayList<>(max - 1);
+        Ticket t = ticket;
+        while (below.size() < max - 1 && (t = this.bySkill.lower(t)) != null) {
+            below.add(t);
+        }
+        t = ticket;
+        while (above.size() < max - 1 && (t = this.bySkill.higher(t)) != null) {
+            above.add(t);
+        }
+        for (int size = max; size >= minSize; size--) {
+            int bestBelow = -1;
+            double bestSpread = Double.POSITIVE_INFINITY;
+            for (int nBelow = 0; nBelow < size; nBelow++) {
+                int nAbove = size - 1 - nBelow;
+                if (nBelow > below.size() || nAbove > above.size()) {
+                    continue;
+                }
+                double low = nBelow == 0 ? ticket.skill : below.get(nBelow - 1).skill;
+                double high = nAbove == 0 ? ticket.skill : above.get(nAbove - 1).skill;
+                double spread = high - low;
+                if (spread <= tolerance && spread < bestSpread) {
+                    bestSpread = spread;
+                    bestBelow = nBelow;
+                }
+            }
+            if (bestBelow >= 0) {
+                List<Ticket> group = new ArrayList<>(size);
+                group.addAll(below.subList(0, bestBelow));
+                group.add(ticket);
+                group.addAll(above.subList(0, size - 1 - bestBelow));
+                return group;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens a room for a group and takes its players out of the queue. The room is not
+     * started yet, the caller starts it after leaving the lock.
+     * @return The room, or null if all rooms are in use.
+     */
+    private Game match(List<Ticket> group) {
+        List<User> players = new ArrayList<>(group.size());
+        for (Ticket ticket : group) {
+            players.add(new User(ticket.name, 0, ticket.wins, ticket.avg, 0));
+        }
+        Game room = this.rooms.openRoom(players);
+        if (room == null) {
+            LOG.warn("No free room for %d matched players, they stay queued", group.size());
+            return null;
+        }
+        for (Ticket ticket : group) {
+            this.cancel(ticket.name);
+        }
+        return room;
+    }
+
+    /**
+     * A waiting player, ordered by skill and then by arrival.
+     */
+    private static class Ticket implements Comparable<Ticket> {
+        private final String name;
+        private final int wins;
+        private final float avg;
+        private final double skill;
+        private final long enqueued;
+        private final long sequence;
+        private boolean removed = false;
+
+        Ticket(String name, int wins, float avg, long enqueued, long sequence) {
+            this.name = name;
+            this.wins = wins;
+            this.avg = avg;
+            this.skill = skill(wins, avg);
+            this.enqueued = enqueued;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Ticket o) {
+            int c = Double.compare(this.skill, o.skill);
+            return c != 0 ? c : Long.compare(this.sequence, o.sequence);
+        }
+    }
+}
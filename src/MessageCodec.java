@@ -0,0 +1,349 @@
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Codec for the game messages. The binary format is carried in a BytesMessage:
+ *
+ *   version (1 byte) | opcode (1 byte) | field count (1 byte) | fields
+ *
+ * where each field is its UTF-8 length (2 bytes, big endian) followed by the bytes, so
+ * usernames and answers may contain any character, including '_'. Messages are encoded
+ * into a buffer owned by the sending thread, and decoded into a reusable Frame whose
+ * fields point into the received bytes until they are read.
+ *
+ * During the migration the legacy text format, the opcode name and the fields joined by
+ * '_', is always accepted, and jms.wireFormat selects what is sent: "text" (default,
+ * understood by existing clients) or "binary".
+ */
+public final class MessageCodec {
+    public static final byte VERSION = 1;
+    public static final boolean BINARY = "binary".equalsIgnoreCase(System.getProperty("jms.wireFormat", "text"));
+
+    public static final int UNKNOWN = 0;
+    public static final int REQUESTGAME = 1;
+    public static final int LEAVEGAME = 2;
+    public static final int SUBMITANSWER = 3;
+    public static final int GAMEJOINED = 4;
+    public static final int GAMEFULL = 5;
+    public static final int GAMELEFT = 6;
+    public static final int RIGHTANSWER = 7;
+    public static final int WRONGANSWER = 8;
+    public static final int STARTGAME = 9;
+    public static final int ENDGAME = 10;
+    private static final String[] NAMES = {"UNKNOWN", "REQUESTGAME", "LEAVEGAME", "SUBMITANSWER", "GAMEJOINED",
+            "GAMEFULL", "GAMELEFT", "RIGHTANSWER", "WRONGANSWER", "STARTGAME", "ENDGAME"};
+    private static final int STARTGAME_CARDS = 4;
+    private static final int STARTGAME_PLAYER_FIELDS = 3;
+    private static final int MAX_FIELD_BYTES = 0xFFFF;
+
+    private static final ThreadLocal<Encoder> ENCODERS = ThreadLocal.withInitial(Encoder::new);
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Returns the name of an opcode, as used by the text format.
+     * @param opcode The opcode.
+     * @return The name.
+     */
+    public static String nameOf(int opcode) {
+        return opcode > 0 && opcode < NAMES.length ? NAMES[opcode] : NAMES[UNKNOWN];
+    }
+
+    /**
+     * Encodes a message in the configured wire format.
+     * @param session The session creating the message, owned by the calling thread.
+     * @param opcode The opcode.
+     * @param fields The fields. STARTGAME takes the four cards, then name, wins and average
+     *               time of each player.
+     * @return The message.
+     * @throws JMSException If the message could not be created.
+     */
+    public static Message encode(Session session, int opcode, String... fields) throws JMSException {
+        Encoder encoder = ENCODERS.get();
+        if (BINARY) {
+            int length = encoder.binary(opcode, fields);
+            BytesMessage message = session.createBytesMessage();
+            message.writeBytes(encoder.buf, 0, length);
+            return message;
+        }
+        return session.createTextMessage(encoder.text(opcode, fields));
+    }
+
+    /**
+     * Decodes a message in either format.
+     * @param message The message.
+     * @param frame The frame to decode into, reused between messages.
+     * @return The frame, with opcode UNKNOWN if the message is not a game message.
+     * @throws JMSException If the message body could not be read.
+     */
+    public static Frame decode(Message message, Frame frame) throws JMSException {
+        frame.reset();
+        if (message instanceof BytesMessage) {
+            BytesMessage bytes = (BytesMessage) message;
+            int length = (int) bytes.getBodyLength();
+            frame.ensureCapacity(length);
+            bytes.readBytes(frame.buf, length);
+            frame.parseBinary(length);
+        } else if (message instanceof TextMessage) {
+            String text = ((TextMessage) message).getText();
+            if (text != null) {
+                frame.parseText(text);
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * A decoded message. Fields are located in the received bytes or text and only turned
+     * into strings when read. Reused between messages, so not thread safe.
+     */
+    public static final class Frame {
+        private int opcode;
+        private int count;
+        private int[] starts = new int[8];
+        private int[] ends = new int[8];
+        private byte[] buf = new byte[256];
+        private String text;
+
+        /**
+         * Returns the opcode of the message.
+         * @return The opcode, UNKNOWN for malformed or unknown messages.
+         */
+        public int opcode() {
+            return this.opcode;
+        }
+
+        /**
+         * Returns the number of fields.
+         * @return The number of fields.
+         */
+        public int fieldCount() {
+            return this.count;
+        }
+
+        /**
+         * Returns a field as a string.
+         * @param i The index of the field.
+         * @return The field.
+         */
+        public String field(int i) {
+            this.check(i);
+            if (this.text != null) {
+                return this.text.substring(this.starts[i], this.ends[i]);
+            }
+            return new String(this.buf, this.starts[i], this.ends[i] - this.starts[i], StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Returns a field as an int, parsed in place.
+         * @param i The index of the field.
+         * @return The value.
+         */
+        public int intField(int i) {
+            this.check(i);
+            int pos = this.starts[i];
+            int end = this.ends[i];
+            boolean negative = pos < end && this.charAt(pos) == '-';
+            if (negative) {
+                pos++;
+            }
+            if (pos == end) {
+                throw new NumberFormatException("empty number in field " + i);
+            }
+            int value = 0;
+            for (; pos < end; pos++) {
+                int digit = this.charAt(pos) - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new NumberFormatException("not a number in field " + i);
+                }
+                value = value * 10 + digit;
+            }
+            return negative ? -value : value;
+        }
+
+        /**
+         * Returns a field as a float.
+         * @param i The index of the field.
+         * @return The value.
+         */
+        public float floatField(int i) {
+            return Float.parseFloat(this.field(i));
+        }
+
+        private char charAt(int pos) {
+            return this.text != null ? this.text.charAt(pos) : (char) (this.buf[pos] & 0xFF);
+        }
+
+        private void check(int i) {
+            if (i < 0 || i >= this.count) {
+                throw new IndexOutOfBoundsException("field " + i + " of " + NAMES[this.opcode] + " with " + this.count + " fields");
+            }
+        }
+
+        private void reset() {
+            this.opcode = UNKNOWN;
+            this.count = 0;
+            this.text = null;
+        }
+
+        private void ensureCapacity(int length) {
+            if (this.buf.length < length) {
+                this.buf = Arrays.copyOf(this.buf, Math.max(length, this.buf.length * 2));
+            }
+        }
+
+        private void addField(int start, int end) {
+            if (this.count == this.starts.length) {
+                this.starts = Arrays.copyOf(this.starts, this.count * 2);
+                this.ends = Arrays.copyOf(this.ends, this.count * 2);
+            }
+            this.starts[this.count] = start;
+            this.ends[this.count] = end;
+            this.count++;
+        }
+
+        private void parseBinary(int length) {
+            if (length < 3 || this.buf[0] != VERSION) {
+                return;
+            }
+            int opcode = this.buf[1] & 0xFF;
+            int fields = this.buf[2] & 0xFF;
+            int pos = 3;
+            for (int i = 0; i < fields; i++) {
+                if (pos + 2 > length) {
+                    this.count = 0;
+                    return;
+                }
+                int len = (this.buf[pos] & 0xFF) << 8 | this.buf[pos + 1] & 0xFF;
+                pos += 2;
+                if (pos + len > length) {
+                    this.count = 0;
+                    return;
+                }
+                this.addField(pos, pos + len);
+                pos += len;
+            }
+            this.opcode = opcode < NAMES.length ? opcode : UNKNOWN;
+        }
+
+        private void parseText(String text) {
+            int sep = text.indexOf('_');
+            String name = sep < 0 ? text : text.substring(0, sep);
+            int opcode = UNKNOWN;
+            for (int op = 1; op < NAMES.length; op++) {
+                if (NAMES[op].equals(name)) {
+                    opcode = op;
+                    break;
+                }
+            }
+            if (opcode == UNKNOWN) {
+                return;
+            }
+            this.text = text;
+            // Same fields as the split("_") used before, without compiling a pattern
+            int start = sep + 1;
+            while (sep >= 0) {
+                sep = text.indexOf('_', start);
+                int end = sep < 0 ? text.length() : sep;
+                this.addField(start, end);
+                start = end + 1;
+            }
+            while (this.count > 0 && this.starts[this.count - 1] == this.ends[this.count - 1]) {
+                this.count--;
+            }
+            this.opcode = opcode;
+        }
+    }
+
+    /**
+     * Encoding buffers owned by one sending thread.
+     */
+    private static final class Encoder {
+        private byte[] buf = new byte[256];
+        private final StringBuilder text = new StringBuilder(128);
+
+        private int binary(int opcode, String[] fields) {
+            if (fields.length > 0xFF) {
+                throw new IllegalArgumentException("too many fields: " + fields.length);
+            }
+            this.ensureCapacity(3);
+            this.buf[0] = VERSION;
+            this.buf[1] = (byte) opcode;
+            this.buf[2] = (byte) fields.length;
+            int pos = 3;
+            for (String field : fields) {
+                pos = this.writeField(pos, field);
+            }
+            return pos;
+        }
+
+        // Writes the UTF-8 bytes of a field after a length prefix filled in afterwards
+        private int writeField(int pos, String field) {
+            this.ensureCapacity(pos + 2 + field.length() * 3);
+            int start = pos + 2;
+            int p = start;
+            for (int i = 0; i < field.length(); i++) {
+                char ch = field.charAt(i);
+                if (ch < 0x80) {
+                    this.buf[p++] = (byte) ch;
+                } else if (ch < 0x800) {
+                    this.buf[p++] = (byte) (0xC0 | ch >> 6);
+                    this.buf[p++] = (byte) (0x80 | ch & 0x3F);
+                } else if (Character.isHighSurrogate(ch) && i + 1 < field.length() && Character.isLowSurrogate(field.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(ch, field.charAt(++i));
+                    this.buf[p++] = (byte) (0xF0 | cp >> 18);
+                    this.buf[p++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    this.buf[p++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    this.buf[p++] = (byte) (0x80 | cp & 0x3F);
+                } else {
+                    this.buf[p++] = (byte) (0xE0 | ch >> 12);
+                    this.buf[p++] = (byte) (0x80 | ch >> 6 & 0x3F);
+                    this.buf[p++] = (byte) (0x80 | ch & 0x3F);
+                }
+            }
+            int len = p - start;
+            if (len > MAX_FIELD_BYTES) {
+                throw new IllegalArgumentException("field too long: " + len + " bytes");
+            }
+            this.buf[pos] = (byte) (len >> 8);
+            this.buf[pos + 1] = (byte) len;
+            return p;
+        }
+
+        private String text(int opcode, String[] fields) {
+            StringBuilder sb = this.text;
+            sb.setLength(0);
+            sb.append(NAMES[opcode]);
+            if (opcode == STARTGAME) {
+                // The legacy STARTGAME repeats the last card and packs the players into one field
+                for (int i = 0; i < STARTGAME_CARDS; i++) {
+                    sb.append('_').append(fields[i]);
+                }
+                sb.append('_').append(fields[STARTGAME_CARDS - 1]).append('_');
+                for (int i = STARTGAME_CARDS; i < fields.length; i += STARTGAME_PLAYER_FIELDS) {
+                    if (i != STARTGAME_CARDS) {
+                        sb.append('|');
+                    }
+                    sb.append(fields[i]).append(' ').append(fields[i + 1]).append(' ').append(fields[i + 2]);
+                }
+                return sb.toString();
+            }
+            for (String field : fields) {
+                sb.append('_').append(field);
+            }
+            return sb.toString();
+        }
+
+        private void ensureCapacity(int length) {
+            if (this.buf.length < length) {
+                this.buf = Arrays.copyOf(this.buf, Math.max(length, this.buf.length * 2));
+            }
+        }
+    }
+}
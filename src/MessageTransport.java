@@ -0,0 +1,97 @@
+import java.util.List;
+
+/**
+ * The messaging the game runs on: requests from clients arrive on a queue, replies go
+ * back to the requester, and game events are published to the players of a room. The
+ * transport is picked with the transport property: "jms" (default) uses the JMS provider
+ * of the application server, "inprocess" keeps everything in memory, for benchmarks and
+ * for running the server without an application server.
+ */
+public interface MessageTransport {
+
+    /**
+     * Starts delivering requests to a listener, on the threads of the transport.
+     * @param listener The listener.
+     */
+    void start(RequestListener listener);
+
+    /**
+     * Replies to a request.
+     * @param to Where to reply and the correlation id to reply with.
+     * @param opcode The opcode of the message, from MessageCodec.
+     * @param fields The fields of the message.
+     */
+    void reply(ReplyAddress to, int opcode, String... fields);
+
+    /**
+     * Publishes a game event for the players of one room.
+     * @param roomId The id of the room.
+     * @param players The usernames of the players in the room.
+     * @param opcode The opcode of the message, from MessageCodec.
+     * @param fields The fields of the message.
+     */
+    void publish(int roomId, List<String> players, int opcode, String... fields);
+
+    /**
+     * Stops delivering requests and releases the resources of the transport.
+     */
+    void close();
+
+    /**
+     * Creates a transport by name.
+     * @param name "jms" or "inprocess".
+     * @param host The host of the JMS provider, unused by the in-process transport.
+     * @return The transport.
+     */
+    static MessageTransport create(String name, String host) {
+        switch (name.toLowerCase()) {
+            case "jms":
+                return new JMSTransport(host);
+            case "inprocess":
+                return new InProcessTransport(Integer.getInteger("transport.inprocess.capacity", 65536));
+            default:
+                throw new IllegalArgumentException("Unknown transport: " + name);
+        }
+    }
+
+    /**
+     * Receives the requests of clients.
+     */
+    interface RequestListener {
+
+        /**
+         * Handles a request, possibly on another thread.
+         * @param opcode The opcode of the request, from MessageCodec.
+         * @param fields The fields of the request.
+         * @param replyTo Where to reply.
+         */
+        void onRequest(int opcode, String[] fields, ReplyAddress replyTo);
+
+        /**
+         * Waits until every request delivered so far has been handled, called before the
+         * transport acknowledges them.
+         */
+        void awaitProcessed();
+    }
+
+    /**
+     * The reply destination and correlation id of a request.
+     */
+    final class ReplyAddress {
+        // Transport specific, null for the shared reply destination
+        public final Object destination;
+        public final String correlationId;
+        // Transport specific id of the request itself, null if the transport has none
+        public final String requestId;
+
+        public ReplyAddress(Object destination, String correlationId) {
+            this(destination, correlationId, null);
+        }
+
+        public ReplyAddress(Object destination, String correlationId, String requestId) {
+            this.destination = destination;
+            this.correlationId = correlationId;
+            this.requestId = requestId;
+        }
+    }
+}
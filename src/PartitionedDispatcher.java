@@ -0,0 +1,181 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on a fixed number of single-threaded lanes, picked by a partition key. Tasks
+ * with the same key run one after another in submission order, tasks with different keys
+ * may run in parallel. Each lane tracks its queue depth and how long tasks waited and ran.
+ * Lanes are bounded: dispatching to a full lane blocks until it has room, which holds back
+ * the producer. The task is never run on the caller instead, since that would let it overtake
+ * the tasks of its key that are still queued.
+ */
+public class PartitionedDispatcher {
+    private static final ServerLog LOG = ServerLog.get(PartitionedDispatcher.class);
+    private final Lane[] lanes;
+    private final Object idle = new Object();
+    private int pending = 0;
+
+    /**
+     * Dispatcher with a fixed number of lanes.
+     * @param name The name of the lane threads.
+     * @param laneCount The number of lanes.
+     * @param laneCapacity The number of tasks a lane holds before dispatching to it blocks.
+     */
+    public PartitionedDispatcher(String name, int laneCount, int laneCapacity) {
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            this.lanes[i] = new Lane(name + "-" + i, laneCapacity);
+        }
+    }
+
+    /**
+     * Runs a task on the lane of its key, waiting while the lane is full. A task
+     * dispatched after shutdown, or while the caller is interrupted, is dropped.
+     * @param key The partition key.
+     * @param task The task.
+     */
+    public void dispatch(int key, Runnable task) {
+        int h = key ^ (key >>> 16);
+        Lane lane = this.lanes[Math.floorMod(h, this.lanes.length)];
+        synchronized (this.idle) {
+            this.pending++;
+        }
+        long submitted = System.nanoTime();
+        try {
+            lane.executor.execute(() -> {
+                long started = System.nanoTime();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOG.error(e, "Task failed on %s", lane.name);
+                } finally {
+                    lane.record(started - submitted, System.nanoTime() - started);
+                    this.done();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.error("Task dropped by %s: %s", lane.name, e.getMessage());
+            this.done();
+        }
+    }
+
+    private void done() {
+        synchronized (this.idle) {
+            if (--this.pending == 0) {
+                this.idle.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until every dispatched task has run.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void awaitIdle() throws InterruptedException {
+        synchronized (this.idle) {
+            while (this.pending > 0) {
+                this.idle.wait();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lanes.
+     * @return The number of lanes.
+     */
+    public int laneCount() {
+        return this.lanes.length;
+    }
+
+    /**
+     * Returns the number of tasks waiting on a lane.
+     * @param lane The index of the lane.
+     * @return The queue depth.
+     */
+    public int depth(int lane) {
+        return this.lanes[lane].executor.getQueue().size();
+    }
+
+    /**
+     * Stops the lanes after the tasks already dispatched.
+     * @param timeoutMillis How long to wait for the lanes to finish.
+     */
+    public void shutdown(long timeoutMillis) {
+        for (Lane lane : this.lanes) {
+            lane.executor.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            for (Lane lane : this.lanes) {
+                lane.executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < this.lanes.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(this.lanes[i]);
+        }
+        return sb.toString();
+    }
+
+    private static class Lane {
+        private final String name;
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final AtomicLong runNanos = new AtomicLong();
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+        Lane(String name, int capacity) {
+            this.name = name;
+            this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(capacity), r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }, Lane::waitForRoom);
+        }
+
+        // Called by execute when the lane is full
+        private static void waitForRoom(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("lane is shut down");
+            }
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("interrupted while the lane was full");
+            }
+        }
+
+        private void record(long waited, long ran) {
+            this.processed.incrementAndGet();
+            this.waitNanos.addAndGet(waited);
+            this.runNanos.addAndGet(ran);
+            long latency = waited + ran;
+            long max;
+            while (latency > (max = this.maxLatencyNanos.get()) && !this.maxLatencyNanos.compareAndSet(max, latency)) {
+                // Retry until the max is updated or a larger one is recorded
+            }
+        }
+
+        @Override
+        public String toString() {
+            long n = Math.max(1, this.processed.get());
+            return String.format("%s{depth=%d, processed=%d, avgWaitUs=%d, avgRunUs=%d, maxLatencyUs=%d}",
+                    this.name, this.executor.getQueue().size(), this.processed.get(),
+                    this.waitNanos.get() / n / 1000, this.runNanos.get() / n / 1000, this.maxLatencyNanos.get() / 1000);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * In-memory registry of the users that are logged in. Logging in is an atomic
+ * check-and-set on a concurrent map, so two logins for the same user can never both
+ * succeed. Sessions are kept alive by heartbeats and any other activity of the user,
+ * and sessions idle for longer than the timeout are expired by a background reaper,
+ * which tells the expiry listener so the user can be taken out of their game.
+ */
+public class PresenceRegistry {
+    private static final ServerLog LOG = ServerLog.get(PresenceRegistry.class);
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final long idleTimeoutMillis;
+    private final ScheduledExecutorService reaper;
+    private volatile Consumer<String> expiryListener = username -> { };
+
+    /**
+     * In-memory presence registry.
+     * @param idleTimeoutMillis How long a session may go without activity before it expires.
+     */
+    public PresenceRegistry(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "PresenceRegistry-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 4);
+        this.reaper.scheduleWithFixedDelay(this::reapExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the listener told about every session that expires, called on the reaper thread
+     * or on the thread of a login that replaces an expired session.
+     * @param listener Called with the username of the expired session.
+     */
+    public void setExpiryListener(Consumer<String> listener) {
+        this.expiryListener = listener;
+    }
+
+    /**
+     * Logs a user in unless they already have a live session.
+     * @param username The username of the user.
+     * @return True if the user was logged in, false if they were already online.
+     */
+    public boolean tryLogin(String username) {
+        long now = System.currentTimeMillis();
+        Session fresh = new Session(now);
+        Session current = this.sessions.putIfAbsent(username, fresh);
+        if (current == null) {
+            return true;
+        }
+        // A session that expired but was not reaped yet does not block the login
+        if (current.isExpired(now, this.idleTimeoutMillis) && this.sessions.replace(username, current, fresh)) {
+            this.expired(username);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Logs a user out.
+     * @param username The username of the user.
+     */
+    public void logout(String username) {
+        this.sessions.remove(username);
+    }
+
+    /**
+     * Records activity of a user, keeping their session alive.
+     * @param username The username of the user.
+     * @return False if the user has no live session and needs to log in again.
+     */
+    public boolean heartbeat(String username) {
+        Session session = this.sessions.get(username);
+        long now = System.currentTimeMillis();
+        if (session == null || session.isExpired(now, this.idleTimeoutMillis)) {
+            return false;
+        }
+        session.lastSeen = now;
+        return true;
+    }
+
+    /**
+     * Returns whether a user has a live session.
+     * @param username The username of the user.
+     * @return True if the user is online.
+     */
+    public boolean isOnline(String username) {
+        Session session = this.sessions.get(username);
+        return session != null && !session.isExpired(System.currentTimeMillis(), this.idleTimeoutMillis);
+    }
+
+    /**
+     * Returns the users that are online.
+     * @return The usernames.
+     */
+    public List<String> onlineUsers() {
+        List<String> online = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Session> entry : this.sessions.entrySet()) {
+            if (!entry.getValue().isExpired(now, this.idleTimeoutMillis)) {
+                online.add(entry.getKey());
+            }
+        }
+        return online;
+    }
+
+    /**
+     * Logs everyone out.
+     * @return The number of sessions removed.
+     */
+    public int clear() {
+        int count = this.sessions.size();
+        this.sessions.clear();
+        return count;
+    }
+
+    private void reapExpired() {
+        long now = System.currentTimeMillis();
+        int reaped = 0;
+        for (Map.Entry<String, Session> entry : this.sessions.entrySet()) {
+            // Only removes the session if it was not replaced by a new login meanwhile
+            if (entry.getValue().isExpired(now, this.idleTimeoutMillis) && this.sessions.remove(entry.getKey(), entry.getValue())) {
+                this.expired(entry.getKey());
+                reaped++;
+            }
+        }
+        if (reaped > 0) {
+            LOG.info("Expired %d idle sessions.", reaped);
+        }
+    }
+
+    // An exception must not reach the executor, it would cancel the reaper
+    private void expired(String username) {
+        try {
+            this.expiryListener.accept(username);
+        } catch (RuntimeException e) {
+            LOG.error(e, "Expiry listener failed for %s", username);
+        }
+    }
+
+    private static class Session {
+        private volatile long lastSeen;
+
+        Session(long lastSeen) {
+            this.lastSeen = lastSeen;
+        }
+
+        private boolean isExpired(long now, long idleTimeoutMillis) {
+            return now - this.lastSeen > idleTimeoutMillis;
+        }
+    }
+}
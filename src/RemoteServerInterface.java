@@ -23,7 +23,42 @@ public interface RemoteServerInterface extends Remote {
     public ArrayList<User> getAllUserData() throws RemoteException;
 
     /**
-     * Authenticates a user when logging in, checks if user exists in UserInfo.txt and not in OnlineUsers.
+     * Returns the best ranked users.
+     * @param n The number of users, at most 100.
+     * @return A list of objects of class User, sorted by rank.
+     * @throws RemoteException
+     */
+    public ArrayList<User> getTopUsers(int n) throws RemoteException;
+
+    /**
+     * Returns a page of the leaderboard.
+     * @param offset The number of users to skip, starting from rank 1.
+     * @param limit The number of users, at most 100.
+     * @return A list of objects of class User, sorted by rank.
+     * @throws RemoteException
+     */
+    public ArrayList<User> getUserPage(int offset, int limit) throws RemoteException;
+
+    /**
+     * Returns the users ranked after a given rank, for paging with a cursor.
+     * @param afterRank The rank of the last user the client already has, 0 for the first page.
+     * @param limit The number of users, at most 100.
+     * @return A list of objects of class User, sorted by rank.
+     * @throws RemoteException
+     */
+    public ArrayList<User> getUsersAfterRank(int afterRank, int limit) throws RemoteException;
+
+    /**
+     * Returns the users ranked around a user, including the user.
+     * @param name The username of the user.
+     * @param radius The number of users shown above and below.
+     * @return A list of objects of class User, sorted by rank.
+     * @throws RemoteException
+     */
+    public ArrayList<User> getUsersAroundUser(String name, int radius) throws RemoteException;
+
+    /**
+     * Authenticates a user when logging in, checks if user exists in UserInfo and is not online.
      * Used for old users.
      * @param username The username of the user.
      * @param password The password of the user.
@@ -32,7 +67,7 @@ public interface RemoteServerInterface extends Remote {
     public boolean authenticateUser(String username, String password) throws RemoteException;
 
     /**
-     * Registers the user by adding their details to UserInfo.txt and adds their username to OnlineUsers.
+     * Registers the user by adding their details to UserInfo and logs them in.
      * Used for new users.
      * @param username The username of the user.
      * @param password The password of the user.
@@ -44,8 +79,16 @@ public interface RemoteServerInterface extends Remote {
     public boolean registerAndLoginUser(String username, int games, int wins, double avg, String password) throws RemoteException;
 
     /**
-     * Logs out user by removing their name to OnlineUsers.
+     * Logs out user.
      * @param name The username of the user.
      */
     public void logoutUser(String name) throws RemoteException;
+
+    /**
+     * Keeps the session of a logged in user alive. Sessions without activity expire.
+     * @param name The username of the user.
+     * @return False if the session expired and the user has to log in again.
+     * @throws RemoteException
+     */
+    public boolean heartbeat(String name) throws RemoteException;
 }
@@ -0,0 +1,101 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and many consumers. Every slot has a
+ * sequence number telling whether it is free for the producer at a position or holds
+ * the element for the consumer at a position, so producers and consumers claim
+ * positions with a single compare-and-set and never block each other.
+ * @param <E> The type of the elements.
+ */
+public class RingBuffer<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Bounded lock-free queue.
+     * @param capacity The capacity, rounded up to a power of two.
+     */
+    public RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.items = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element unless the buffer is full.
+     * @param element The element.
+     * @return False if the buffer is full.
+     */
+    public boolean offer(E element) {
+        long pos = this.tail.get();
+        while (true) {
+            int index = (int) pos & this.mask;
+            long diff = this.sequences.get(index) - pos;
+            if (diff == 0) {
+                if (this.tail.compareAndSet(pos, pos + 1)) {
+                    this.items.set(index, element);
+                    // Publishes the element to the consumer of this position
+                    this.sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = this.tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = this.tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element.
+     * @return The element, or null if the buffer is empty.
+     */
+    public E poll() {
+        long pos = this.head.get();
+        while (true) {
+            int index = (int) pos & this.mask;
+            long diff = this.sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (this.head.compareAndSet(pos, pos + 1)) {
+                    E element = this.items.get(index);
+                    this.items.set(index, null);
+                    // Frees the slot for the producer one lap ahead
+                    this.sequences.set(index, pos + this.mask + 1);
+                    return element;
+                }
+                pos = this.head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = this.head.get();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of elements, exact only when no thread is adding or removing.
+     * @return The number of elements.
+     */
+    public int size() {
+        long size = this.tail.get() - this.head.get();
+        return (int) Math.max(0, Math.min(size, this.mask + 1));
+    }
+
+    /**
+     * Returns the capacity.
+     * @return The capacity.
+     */
+    public int capacity() {
+        return this.mask + 1;
+    }
+}
@@ -0,0 +1,101 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Versioned schema migrations. Each migration runs once, in order, and is recorded in
+ * the schema_version table, so a restart keeps the existing data and only applies the
+ * migrations added since the last start. Add new migrations at the end of the list,
+ * never edit one that has already shipped.
+ */
+public class SchemaMigrations {
+    private static final ServerLog LOG = ServerLog.get(SchemaMigrations.class);
+    public static final String SCHEMA_VERSION = "schema_version";
+    // MySQL error codes for objects that already exist, seen on databases created before migrations
+    private static final int ER_TABLE_EXISTS = 1050;
+    private static final int ER_DUP_KEYNAME = 1061;
+
+    private final List<Migration> migrations = new ArrayList<>();
+
+    public SchemaMigrations() {
+        this.add(1, "Create OnlineUsers and UserInfo",
+                "CREATE TABLE IF NOT EXISTS " + DatabaseService.ONLINE_USERS + " (name VARCHAR(255) PRIMARY KEY)",
+                "CREATE TABLE IF NOT EXISTS " + DatabaseService.USER_INFO + " (name VARCHAR(255) PRIMARY KEY, password VARCHAR(255), games INT, wins INT, avg FLOAT, ranking INT)");
+        this.add(2, "Index UserInfo by ranking for leaderboard pages",
+                "CREATE INDEX idx_userinfo_ranking ON " + DatabaseService.USER_INFO + " (ranking)");
+        this.add(3, "Index UserInfo by leaderboard order",
+                "CREATE INDEX idx_userinfo_order ON " + DatabaseService.USER_INFO + " (wins, games, avg)");
+        this.add(4, "Drop OnlineUsers, presence is kept in memory",
+                "DROP TABLE IF EXISTS " + DatabaseService.ONLINE_USERS);
+    }
+
+    private void add(int version, String description, String... statements) {
+        this.migrations.add(new Migration(version, description, statements));
+    }
+
+    /**
+     * Brings the schema up to date.
+     * @param conn The connection to use.
+     * @throws SQLException If a migration fails.
+     */
+    public void migrate(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + SCHEMA_VERSION +
+                    " (version INT PRIMARY KEY, description VARCHAR(255), applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+        }
+        int current = this.currentVersion(conn);
+        int applied = 0;
+        for (Migration migration : this.migrations) {
+            if (migration.version <= current) {
+                continue;
+            }
+            LOG.info("Applying schema migration %d: %s", migration.version, migration.description);
+            try (Statement stmt = conn.createStatement()) {
+                for (String sql : migration.statements) {
+                    try {
+                        stmt.executeUpdate(sql);
+                    } catch (SQLException e) {
+                        if (e.getErrorCode() != ER_TABLE_EXISTS && e.getErrorCode() != ER_DUP_KEYNAME) {
+                            throw e;
+                        }
+                        LOG.info("Skipping, already present: %s", e.getMessage());
+                    }
+                }
+            }
+            try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + SCHEMA_VERSION + " (version, description) VALUES (?, ?)")) {
+                stmt.setInt(1, migration.version);
+                stmt.setString(2, migration.description);
+                stmt.executeUpdate();
+            }
+            applied++;
+        }
+        LOG.info("Schema at version %d, %d migrations applied.", Math.max(current, this.latestVersion()), applied);
+    }
+
+    private int currentVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(version) FROM " + SCHEMA_VERSION)) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private int latestVersion() {
+        return this.migrations.isEmpty() ? 0 : this.migrations.get(this.migrations.size() - 1).version;
+    }
+
+    private static class Migration {
+        private final int version;
+        private final String description;
+        private final String[] statements;
+
+        Migration(int version, String description, String[] statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leveled, asynchronous logger. Callers only enqueue a record; formatting and console
+ * output happen on a background thread, so a slow console never holds up a request.
+ * The level is read from -Dlog.level (DEBUG, INFO, WARN, ERROR), INFO by default.
+ * When the queue is full records are dropped and counted rather than blocking.
+ */
+public final class ServerLog {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final Level LEVEL = parseLevel(System.getProperty("log.level", "INFO"));
+    private static final BlockingQueue<Record> QUEUE = new ArrayBlockingQueue<>(Integer.getInteger("log.queueCapacity", 8192));
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final Thread WRITER;
+
+    static {
+        WRITER = new Thread(ServerLog::write, "ServerLog-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ServerLog::drain, "ServerLog-shutdown"));
+    }
+
+    private final String name;
+
+    private ServerLog(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns a logger for a class.
+     * @param type The class that logs.
+     * @return The logger.
+     */
+    public static ServerLog get(Class<?> type) {
+        return new ServerLog(type.getSimpleName());
+    }
+
+    /**
+     * Returns whether records of a level are written.
+     * @param level The level.
+     * @return True if the level is enabled.
+     */
+    public boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    public void debug(String format, Object... args) {
+        this.log(Level.DEBUG, null, format, args);
+    }
+
+    public void info(String format, Object... args) {
+        this.log(Level.INFO, null, format, args);
+    }
+
+    public void warn(String format, Object... args) {
+        this.log(Level.WARN, null, format, args);
+    }
+
+    public void error(String format, Object... args) {
+        this.log(Level.ERROR, null, format, args);
+    }
+
+    public void error(Throwable cause, String format, Object... args) {
+        this.log(Level.ERROR, cause, format, args);
+    }
+
+    /**
+     * Returns the number of records dropped because the queue was full.
+     * @return The number of dropped records.
+     */
+    public static long droppedCount() {
+        return DROPPED.get();
+    }
+
+    private void log(Level level, Throwable cause, String format, Object[] args) {
+        if (!this.isEnabled(level)) {
+            return;
+        }
+        Record record = new Record(System.currentTimeMillis(), level, this.name, Thread.currentThread().getName(), cause, format, args);
+        if (!QUEUE.offer(record)) {
+            DROPPED.incrementAndGet();
+        }
+    }
+
+    private static void write() {
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS");
+        List<Record> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(QUEUE.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            QUEUE.drainTo(batch);
+            for (Record record : batch) {
+                print(record, time);
+            }
+            batch.clear();
+            System.out.flush();
+            System.err.flush();
+        }
+    }
+
+    private static void drain() {
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS");
+        Record record;
+        while ((record = QUEUE.poll()) != null) {
+            print(record, time);
+        }
+        long dropped = DROPPED.get();
+        if (dropped > 0) {
+            System.err.println(dropped + " log records were dropped");
+        }
+    }
+
+    private static void print(Record record, SimpleDateFormat time) {
+        PrintStream out = record.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+        String message;
+        try {
+            message = record.args.length == 0 ? record.format : String.format(record.format, record.args);
+        } catch (RuntimeException e) {
+            message = record.format;
+        }
+        out.println(time.format(new Date(record.time)) + " " + record.level + " [" + record.thread + "] "
+                + record.logger + " - " + message);
+        if (record.cause != null) {
+            record.cause.printStackTrace(out);
+        }
+    }
+
+    private static Level parseLevel(String level) {
+        try {
+            return Level.valueOf(level.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    private static class Record {
+        private final long time;
+        private final Level level;
+        private final String logger;
+        private final String thread;
+        private final Throwable cause;
+        private final String format;
+        private final Object[] args;
+
+        Record(long time, Level level, String logger, String thread, Throwable cause, String format, Object[] args) {
+            this.time = time;
+            this.level = level;
+            this.logger = logger;
+            this.thread = thread;
+            this.cause = cause;
+            this.format = format;
+            this.args = args;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Table of every solvable 24 hand, built once at startup by an exact solver. Card
+ * values run from 1 to 13 (card n has value (n - 1) % 13 + 1), so a hand of four values
+ * has a perfect hash in base 13 once its values are sorted. The table keeps one bit per
+ * hash for solvability, a canonical solution per solvable hand, and every solvable hand
+ * of four distinct cards packed into an int, so dealing is a single random pick.
+ */
+public class SolvabilityTable {
+    private static final ServerLog LOG = ServerLog.get(SolvabilityTable.class);
+    public static final int TARGET = 24;
+    public static final int CARDS = 52;
+    public static final int VALUES = 13;
+    private static final int HAND = 4;
+    private static final int KEYS = VALUES * VALUES * VALUES * VALUES;
+
+    private final BitSet solvable = new BitSet(KEYS);
+    // Sorted, since hands are solved in increasing key order
+    private final int[] solutionKeys;
+    private final String[] solutions;
+    private final int[] deals;
+
+    /**
+     * Solves every hand and builds the table.
+     */
+    public SolvabilityTable() {
+        long start = System.nanoTime();
+        int[] keys = new int[KEYS];
+        String[] found = new String[KEYS];
+        int count = 0;
+        int[] values = new int[HAND];
+        for (values[0] = 1; values[0] <= VALUES; values[0]++) {
+            for (values[1] = values[0]; values[1] <= VALUES; values[1]++) {
+                for (values[2] = values[1]; values[2] <= VALUES; values[2]++) {
+                    for (values[3] = values[2]; values[3] <= VALUES; values[3]++) {
+                        String solution = solve(values);
+                        if (solution != null) {
+                            int key = key(values[0], values[1], values[2], values[3]);
+                            this.solvable.set(key);
+                            keys[count] = key;
+                            found[count] = solution;
+                            count++;
+                        }
+                    }
+                }
+            }
+        }
+        this.solutionKeys = Arrays.copyOf(keys, count);
+        this.solutions = Arrays.copyOf(found, count);
+        this.deals = this.solvableDeals();
+        LOG.info("Solved 24 hands in %d ms: %d of 1820 value hands and %d of 270725 card hands are solvable.",
+                (System.nanoTime() - start) / 1000000, count, this.deals.length);
+    }
+
+    /**
+     * Returns the value of a card.
+     * @param card The card, from 1 to 52.
+     * @return The value, from 1 to 13.
+     */
+    public static int valueOf(int card) {
+        return (card - 1) % VALUES + 1;
+    }
+
+    /**
+     * Returns whether four values can make 24.
+     * @param a The first value.
+     * @param b The second value.
+     * @param c The third value.
+     * @param d The fourth value.
+     * @return True if the hand is solvable.
+     */
+    public boolean isSolvable(int a, int b, int c, int d) {
+        return this.solvable.get(sortedKey(a, b, c, d));
+    }
+
+    /**
+     * Returns a canonical solution for four values, to be used as a hint.
+     * @param a The first value.
+     * @param b The second value.
+     * @param c The third value.
+     * @param d The fourth value.
+     * @return An expression making 24, or null if the hand is not solvable.
+     */
+    public String solutionFor(int a, int b, int c, int d) {
+        int i = Arrays.binarySearch(this.solutionKeys, sortedKey(a, b, c, d));
+        return i < 0 ? null : this.solutions[i];
+    }
+
+    /**
+     * Deals four distinct cards that can make 24.
+     * @param random The source of randomness.
+     * @return The cards, from 1 to 52.
+     */
+    public int[] deal(Random random) {
+        int packed = this.deals[random.nextInt(this.deals.length)];
+        int[] cards = new int[HAND];
+        for (int i = 0; i < HAND; i++) {
+            cards[i] = (packed >>> (6 * i) & 0x3F) + 1;
+        }
+        // Cards are packed in increasing order, shuffle so the order gives nothing away
+        for (int i = HAND - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = cards[i];
+            cards[i] = cards[j];
+            cards[j] = t;
+        }
+        return cards;
+    }
+
+    private int[] solvableDeals() {
+        int[] packed = new int[270725];
+        int count = 0;
+        for (int a = 0; a < CARDS; a++) {
+            for (int b = a + 1; b < CARDS; b++) {
+                for (int c = b + 1; c < CARDS; c++) {
+                    for (int d = c + 1; d < CARDS; d++) {
+                        if (this.isSolvable(valueOf(a + 1), valueOf(b + 1), valueOf(c + 1), valueOf(d + 1))) {
+                            packed[count++] = a | b << 6 | c << 12 | d << 18;
+                        }
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(packed, count);
+    }
+
+    private static int key(int a, int b, int c, int d) {
+        return (((a - 1) * VALUES + (b - 1)) * VALUES + (c - 1)) * VALUES + (d - 1);
+    }
+
+    private static int sortedKey(int a, int b, int c, int d) {
+        int t;
+        // Sorting network for four values
+        if (a > b) { t = a; a = b; b = t; }
+        if (c > d) { t = c; c = d; d = t; }
+        if (a > c) { t = a; a = c; c = t; }
+        if (b > d) { t = b; b = d; d = t; }
+        if (b > c) { t = b; b = c; c = t; }
+        return key(a, b, c, d);
+    }
+
+    /**
+     * Finds an expression making 24 from the values, trying every way to pick two
+     * operands, combine them with an operator and recurse, which covers every order and
+     * parenthesization. Arithmetic is on exact fractions, so 8/(3-8/3) is found.
+     */
+    private static String solve(int[] values) {
+        long[] num = new long[HAND];
+        long[] den = new long[HAND];
+        String[] expr = new String[HAND];
+        for (int i = 0; i < HAND; i++) {
+            num[i] = values[i];
+            den[i] = 1;
+            expr[i] = Integer.toString(values[i]);
+        }
+        return solve(num, den, expr, HAND);
+    }
+
+    private static String solve(long[] num, long[] den, String[] expr, int n) {
+        if (n == 1) {
+            return num[0] == (long) TARGET * den[0] ? expr[0] : null;
+        }
+        long[] nextNum = new long[n - 1];
+        long[] nextDen = new long[n - 1];
+        String[] nextExpr = new String[n - 1];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (i == j) {
+                    continue;
+                }
+                int k = 0;
+                for (int m = 0; m < n; m++) {
+                    if (m != i && m != j) {
+                        nextNum[k] = num[m];
+                        nextDen[k] = den[m];
+                        nextExpr[k] = expr[m];
+                        k++;
+                    }
+                }
+                for (int op = 0; op < 4; op++) {
+                    // + and * are commutative, only try them once per pair
+                    if (op < 2 && i > j) {
+                        continue;
+                    }
+                    long rn;
+                    long rd;
+                    char symbol;
+                    switch (op) {
+                        case 0: rn = num[i] * den[j] + num[j] * den[i]; rd = den[i] * den[j]; symbol = '+'; break;
+                        case 1: rn = num[i] * num[j]; rd = den[i] * den[j]; symbol = '*'; break;
+                        case 2: rn = num[i] * den[j] - num[j] * den[i]; rd = den[i] * den[j]; symbol = '-'; break;
+                        default:
+                            if (num[j] == 0) {
+                                continue;
+                            }
+                            rn = num[i] * den[j]; rd = den[i] * num[j]; symbol = '/';
+                    }
+                    if (rd < 0) {
+                        rn = -rn;
+                        rd = -rd;
+                    }
+                    long g = gcd(Math.abs(rn), rd);
+                    nextNum[k] = rn / g;
+                    nextDen[k] = rd / g;
+                    nextExpr[k] = n == 2 ? expr[i] + symbol + expr[j] : "(" + expr[i] + symbol + expr[j] + ")";
+                    String solution = solve(nextNum, nextDen, nextExpr, n - 1);
+                    if (solution != null) {
+                        return solution;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a == 0 ? 1 : a;
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * A change to a player's statistics, applied on top of what is stored for them.
+ */
+public class StatDelta {
+    private final String name;
+    private final int games;
+    private final int wins;
+    private final float winTime;
+
+    /**
+     * A change to a player's statistics.
+     * @param name The username of the player.
+     * @param games The number of games played.
+     * @param wins The number of those games that were won.
+     * @param winTime The summed time of the won games.
+     */
+    public StatDelta(String name, int games, int wins, float winTime) {
+        this.name = name;
+        this.games = games;
+        this.wins = wins;
+        this.winTime = winTime;
+    }
+
+    /**
+     * The change caused by a single finished game.
+     * @param name The username of the player.
+     * @param playerWon Whether the player won.
+     * @param time The time it took if the player won.
+     * @return The change to the player's statistics.
+     */
+    public static StatDelta forGame(String name, boolean playerWon, float time) {
+        return playerWon ? new StatDelta(name, 1, 1, time) : new StatDelta(name, 1, 0, 0.0F);
+    }
+
+    /**
+     * Combines this change with a later one for the same player.
+     * @param other The later change.
+     * @return The combined change.
+     */
+    public StatDelta merge(StatDelta other) {
+        return new StatDelta(this.name, this.games + other.games, this.wins + other.wins, this.winTime + other.winTime);
+    }
+
+    public String getName(){
+        return this.name;
+    }
+    public int getGames(){
+        return this.games;
+    }
+    public int getWins(){
+        return this.wins;
+    }
+    public float getWinTime(){
+        return this.winTime;
+    }
+}
@@ -0,0 +1,213 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Write-behind stage between the games and the database. Statistic changes are queued,
+ * coalesced per player and flushed from a dedicated thread once enough players are
+ * pending or the flush interval has passed, so game threads never wait on MySQL. A failed
+ * write is retried with a delay that doubles up to stats.maxBackoffMs, so the flusher does
+ * not hammer a database that is down.
+ */
+public class StatsWriteBehind {
+    private static final ServerLog LOG = ServerLog.get(StatsWriteBehind.class);
+    private static final int QUEUE_CAPACITY = Integer.getInteger("stats.queueCapacity", 1024);
+    private static final int FLUSH_SIZE = Integer.getInteger("stats.flushSize", 64);
+    private static final long FLUSH_INTERVAL_MS = Long.getLong("stats.flushIntervalMs", 200L);
+    private static final long SHUTDOWN_TIMEOUT_MS = Long.getLong("stats.shutdownTimeoutMs", 10000L);
+    private static final long MAX_BACKOFF_MS = Long.getLong("stats.maxBackoffMs", 5000L);
+    // Queued by shutdown to wake the flusher, never written
+    private static final StatDelta WAKEUP = new StatDelta("", 0, 0, 0.0F);
+
+    private final DatabaseService db;
+    private final BlockingQueue<StatDelta> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Map<String, StatDelta> pending = new LinkedHashMap<>();
+    private final Thread flusher;
+    private volatile boolean running = true;
+    // Submits hold the read lock while they queue, shutdown takes the write lock to stop them
+    private final ReadWriteLock submitLock = new ReentrantReadWriteLock();
+
+    /**
+     * Write-behind stage for player statistics.
+     * @param db The database the statistics are written to.
+     */
+    public StatsWriteBehind(DatabaseService db) {
+        this.db = db;
+        this.flusher = new Thread(this::run, "StatsWriteBehind");
+        this.flusher.start();
+    }
+
+    /**
+     * Queues the statistics of everyone in a finished game.
+     * @param players The usernames of the players in the game.
+     * @param winner The username of the winner.
+     * @param time The time it took for the winner.
+     */
+    public void submitGame(Collection<String> players, String winner, float time) {
+        for (String player : players) {
+            this.submit(StatDelta.forGame(player, Objects.equals(player, winner), time));
+        }
+    }
+
+    /**
+     * Queues a statistic change. Blocks while the queue is full, and writes
+     * straight to the database once the stage has been shut down.
+     * @param delta The change to queue.
+     */
+    public void submit(StatDelta delta) {
+        this.submitLock.readLock().lock();
+        try {
+            if (this.running && this.enqueue(delta)) {
+                return;
+            }
+        } finally {
+            this.submitLock.readLock().unlock();
+        }
+        List<StatDelta> single = new ArrayList<>(1);
+        single.add(delta);
+        this.db.applyStatDeltas(single);
+    }
+
+    private boolean enqueue(StatDelta delta) {
+        if (this.queue.offer(delta)) {
+            return true;
+        }
+        LOG.warn("Stats queue full, waiting to submit stats for %s", delta.getName());
+        try {
+            // The flusher keeps taking changes until shutdown, which waits for this submit
+            this.queue.put(delta);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of changes waiting in the queue.
+     * @return The queue depth.
+     */
+    public int queueDepth() {
+        return this.queue.size();
+    }
+
+    /**
+     * Stops accepting changes, flushes everything still queued and waits for the flusher to finish.
+     * The flusher is woken up rather than interrupted, so its last flush can still borrow a connection.
+     */
+    public void shutdown() {
+        // Waits for the submits in progress, so every change they queued is drained by the flusher
+        this.submitLock.writeLock().lock();
+        try {
+            this.running = false;
+        } finally {
+            this.submitLock.writeLock().unlock();
+        }
+        // A full queue means the flusher is not waiting for changes, so a failed offer is fine
+        this.queue.offer(WAKEUP);
+        try {
+            this.flusher.join(SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.flusher.isAlive()) {
+            LOG.error("Stats flusher did not finish within %d ms", SHUTDOWN_TIMEOUT_MS);
+            return;
+        }
+        // Only the wakeup should be left, kept as a safety net
+        List<StatDelta> late = new ArrayList<>();
+        this.queue.drainTo(late);
+        late.remove(WAKEUP);
+        if (!late.isEmpty()) {
+            this.db.applyStatDeltas(late);
+        }
+    }
+
+    private void run() {
+        long deadline = System.currentTimeMillis() + FLUSH_INTERVAL_MS;
+        long backoff = 0;
+        while (this.running) {
+            try {
+                StatDelta delta = this.queue.poll(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (delta != null) {
+                    this.coalesce(delta);
+                    this.drainQueue();
+                }
+            } catch (InterruptedException e) {
+                // Shutdown wakes the flusher through the queue, so this is not expected
+                LOG.warn("Stats flusher interrupted, flushing what is pending");
+            }
+            long now = System.currentTimeMillis();
+            // While backing off only the deadline flushes, so a full batch does not retry in a loop
+            if ((this.pending.size() >= FLUSH_SIZE && backoff == 0) || now >= deadline) {
+                if (this.flush()) {
+                    backoff = 0;
+                    deadline = now + FLUSH_INTERVAL_MS;
+                } else {
+                    backoff = backoff == 0 ? FLUSH_INTERVAL_MS : Math.min(backoff * 2, MAX_BACKOFF_MS);
+                    LOG.warn("Writing the stats of %d players failed, retrying in %d ms", this.pending.size(), backoff);
+                    deadline = now + backoff;
+                }
+            }
+        }
+        // Drain whatever arrived before shutdown, retrying a failed write until half the shutdown timeout is spent
+        this.drainQueue();
+        long giveUp = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MS / 2;
+        while (!this.flush() && System.currentTimeMillis() < giveUp) {
+            try {
+                Thread.sleep(FLUSH_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        if (!this.pending.isEmpty()) {
+            LOG.error("Stats write-behind stopped, dropping the stats of %d players", this.pending.size());
+            return;
+        }
+        LOG.info("Stats write-behind stopped.");
+    }
+
+    private void drainQueue() {
+        StatDelta delta;
+        while (this.pending.size() < FLUSH_SIZE && (delta = this.queue.poll()) != null) {
+            this.coalesce(delta);
+        }
+        if (!this.running) {
+            while ((delta = this.queue.poll()) != null) {
+                this.coalesce(delta);
+            }
+        }
+    }
+
+    private void coalesce(StatDelta delta) {
+        if (delta == WAKEUP) {
+            return;
+        }
+        StatDelta previous = this.pending.get(delta.getName());
+        this.pending.put(delta.getName(), previous == null ? delta : previous.merge(delta));
+    }
+
+    /**
+     * Writes the pending changes. They stay pending if the write fails, so the next flush
+     * retries them, which is safe since a failed write changes nothing.
+     * @return True if nothing is left pending.
+     */
+    private boolean flush() {
+        if (this.pending.isEmpty()) {
+            return true;
+        }
+        if (!this.db.applyStatDeltas(new ArrayList<>(this.pending.values()))) {
+            return false;
+        }
+        this.pending.clear();
+        return true;
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-through cache of users and of the sorted leaderboard. Individual users are kept
+ * in LRU order up to a maximum size. Every invalidation bumps a version number, so a
+ * read that raced with an update never stores the stale value it loaded.
+ */
+public class UserCache {
+    private final Map<String, User> users;
+    private final int maxUsers;
+    private volatile ArrayList<User> leaderboard = null;
+    private long version = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Read-through cache of users.
+     * @param maxUsers The maximum number of individual users kept.
+     */
+    public UserCache(final int maxUsers) {
+        this.maxUsers = maxUsers;
+        this.users = new LinkedHashMap<String, User>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, User> eldest) {
+                return this.size() > maxUsers;
+            }
+        };
+    }
+
+    /**
+     * Returns the current version, to be passed back when storing a loaded value.
+     * @return The version.
+     */
+    public synchronized long version() {
+        return this.version;
+    }
+
+    /**
+     * Returns a cached user.
+     * @param name The username.
+     * @return The user, or null if not cached.
+     */
+    public synchronized User getUser(String name) {
+        User user = this.users.get(name);
+        if (user == null) {
+            this.misses++;
+        } else {
+            this.hits++;
+        }
+        return user;
+    }
+
+    /**
+     * Stores a user loaded from the database, unless the cache was invalidated since the load started.
+     * @param user The user.
+     * @param version The version read before the load.
+     */
+    public synchronized void putUser(User user, long version) {
+        if (user != null && version == this.version) {
+            this.users.put(user.getName(), user);
+        }
+    }
+
+    /**
+     * Returns the cached leaderboard, sorted by rank.
+     * @return The leaderboard, or null if not cached.
+     */
+    public ArrayList<User> getLeaderboard() {
+        ArrayList<User> snapshot = this.leaderboard;
+        synchronized (this) {
+            if (snapshot == null) {
+                this.misses++;
+            } else {
+                this.hits++;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Stores a leaderboard loaded from the database, unless the cache was invalidated since the load started.
+     * @param snapshot The leaderboard, sorted by rank. It must not be modified afterwards.
+     * @param version The version read before the load.
+     */
+    public synchronized void putLeaderboard(ArrayList<User> snapshot, long version) {
+        if (version == this.version) {
+            this.leaderboard = snapshot;
+        }
+    }
+
+    /**
+     * Fills the cache from a bulk read at startup. The best ranked users are kept when
+     * there are more users than fit.
+     * @param snapshot The leaderboard, sorted by rank. It must not be modified afterwards.
+     * @param version The version read before the load.
+     */
+    public synchronized void warm(ArrayList<User> snapshot, long version) {
+        if (version != this.version) {
+            return;
+        }
+        this.leaderboard = snapshot;
+        int count = Math.min(snapshot.size(), this.maxUsers);
+        // Insert from worst to best so the best ranked users are the most recently used
+        for (int i = count - 1; i >= 0; i--) {
+            this.users.put(snapshot.get(i).getName(), snapshot.get(i));
+        }
+    }
+
+    /**
+     * Drops the given users and the leaderboard. Nothing is dropped if no user changed.
+     * @param names The usernames whose data changed.
+     */
+    public synchronized void invalidate(Collection<String> names) {
+        if (names.isEmpty()) {
+            return;
+        }
+        this.version++;
+        this.leaderboard = null;
+        for (String name : names) {
+            this.users.remove(name);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        long total = this.hits + this.misses;
+        return String.format("users=%d leaderboard=%s hits=%d misses=%d hitRate=%.1f%%", this.users.size(),
+                this.leaderboard == null ? "empty" : String.valueOf(this.leaderboard.size()), this.hits, this.misses,
+                total == 0 ? 0.0 : 100.0 * this.hits / total);
+    }
+}